@@ -0,0 +1,66 @@
+package xyz.hexene.localvpn;
+
+import com.socks.library.KLog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running estimates of the upstream path, used to size server socket buffers to its
+ * bandwidth-delay product rather than to a fixed value.
+ *
+ * The round trip comes from how long each connect took, the bandwidth from the read rate of
+ * flows that moved enough data to say something about it, both as moving averages. The read
+ * rate runs from a flow's first to its last read, so a keep-alive flow that sat idle between
+ * requests pulls the estimate down; that only errs towards smaller buffers. Send buffers get
+ * the same size, the download rate is the only one we measure.
+ */
+class BandwidthEstimator {
+    private static final String TAG = BandwidthEstimator.class.getSimpleName();
+    // Until both estimates have a sample
+    private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    // Smaller transfers end before TCP leaves slow start
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024;
+
+    // Moving averages, each sample weighs 1/8; 0 while there is none
+    private static long rttNanos;
+    private static long bytesPerSecond;
+
+    public static synchronized void recordRtt(long sampleNanos) {
+        if (sampleNanos <= 0)
+            return;
+        rttNanos = rttNanos == 0 ? sampleNanos : rttNanos + (sampleNanos - rttNanos) / 8;
+    }
+
+    /**
+     * @param bytes read from one flow
+     * @param nanos between its first and last read
+     */
+    public static synchronized void recordTransfer(long bytes, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (bytes < MIN_SAMPLE_BYTES || millis <= 0)
+            return;
+        long sample = bytes * 1000 / millis;
+        bytesPerSecond = bytesPerSecond == 0 ? sample : bytesPerSecond + (sample - bytesPerSecond) / 8;
+        KLog.d(TAG, "bandwidth = " + bytesPerSecond / 1024 + "K/s rtt = " + TimeUnit.NANOSECONDS.toMillis(rttNanos) + "ms");
+    }
+
+    /**
+     * @return buffer size for a new connection, from the average round trip
+     */
+    public static synchronized int bufferSize() {
+        return bufferSize(rttNanos);
+    }
+
+    /**
+     * @return buffer size for a connection with a known round trip
+     */
+    public static synchronized int bufferSize(long flowRttNanos) {
+        if (bytesPerSecond == 0 || flowRttNanos <= 0)
+            return DEFAULT_BUFFER_SIZE;
+        // Twice the product, the kernel keeps part of the buffer for its own bookkeeping
+        long size = 2 * bytesPerSecond * TimeUnit.NANOSECONDS.toMicros(flowRttNanos) / TimeUnit.SECONDS.toMicros(1);
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(size, MAX_BUFFER_SIZE));
+    }
+}
@@ -0,0 +1,156 @@
+package xyz.hexene.localvpn;
+
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Leak tracking for ByteBufferPool, only used when ByteBufferPool.TRACK_LEAKS is set.
+ *
+ * Every acquired buffer gets a weak reference recording where it was acquired and which stage
+ * holds it now. A release drops the reference. A buffer that is collected while still tracked
+ * was leaked, and is reported with its acquire site on the next call. Releasing a buffer that
+ * isn't tracked is reported too, it was released twice. Everything runs under one lock, which
+ * is fine for debugging and nothing else.
+ */
+class BufferTracker {
+    private static final String TAG = BufferTracker.class.getSimpleName();
+
+    private static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+    // By identity hash code, trackers of colliding buffers are chained
+    private static final HashMap<Integer, Tracker> trackers = new HashMap<>();
+    private static final TreeMap<String, Integer> heldByStage = new TreeMap<>();
+    private static int leaks;
+
+    public static synchronized void acquired(ByteBuffer buffer) {
+        reportCollected();
+        Throwable site = new Throwable("Acquired here");
+        Tracker tracker = new Tracker(buffer, site, stageOf(site));
+        tracker.next = trackers.put(tracker.hash, tracker);
+        count(tracker.stage, 1);
+    }
+
+    /**
+     * @return false if the buffer wasn't tracked, so it must not go back to the pool
+     */
+    public static synchronized boolean released(ByteBuffer buffer) {
+        reportCollected();
+        Tracker tracker = remove(System.identityHashCode(buffer), buffer);
+        if (tracker == null) {
+            Log.e(TAG, "Released twice, or never acquired", new Throwable("Released here"));
+            return false;
+        }
+        tracker.clear();
+        count(tracker.stage, -1);
+        return true;
+    }
+
+    /**
+     * Records that the buffer is now held by the given stage, e.g. a queue on the TCB.
+     */
+    public static synchronized void transferred(ByteBuffer buffer, String stage) {
+        for (Tracker tracker = trackers.get(System.identityHashCode(buffer)); tracker != null; tracker = tracker.next) {
+            if (tracker.get() == buffer) {
+                count(tracker.stage, -1);
+                tracker.stage = stage;
+                count(stage, 1);
+                return;
+            }
+        }
+    }
+
+    public static synchronized int getLeaks() {
+        reportCollected();
+        return leaks;
+    }
+
+    public static synchronized String report() {
+        reportCollected();
+        return "held = " + heldByStage + " leaks = " + leaks;
+    }
+
+    /**
+     * Forgets every buffer, for when the pool is cleared with buffers still in flight.
+     */
+    public static synchronized void clear() {
+        for (Tracker tracker : trackers.values()) {
+            for (; tracker != null; tracker = tracker.next)
+                tracker.clear();
+        }
+        trackers.clear();
+        heldByStage.clear();
+        while (collected.poll() != null) ;
+    }
+
+    private static void reportCollected() {
+        Tracker tracker;
+        while ((tracker = (Tracker) collected.poll()) != null) {
+            // Still tracked, so never released; a released tracker is cleared and not enqueued
+            if (remove(tracker.hash, tracker) == null)
+                continue;
+            leaks++;
+            count(tracker.stage, -1);
+            Log.e(TAG, "Buffer collected without release, held by " + tracker.stage, tracker.site);
+        }
+    }
+
+    /**
+     * Unlinks the tracker whose buffer, or which itself, is the given object.
+     */
+    private static Tracker remove(int hash, Object target) {
+        Tracker previous = null;
+        for (Tracker tracker = trackers.get(hash); tracker != null; tracker = tracker.next) {
+            if (tracker == target || tracker.get() == target) {
+                if (previous != null)
+                    previous.next = tracker.next;
+                else if (tracker.next != null)
+                    trackers.put(hash, tracker.next);
+                else
+                    trackers.remove(hash);
+                return tracker;
+            }
+            previous = tracker;
+        }
+        return null;
+    }
+
+    private static void count(String stage, int delta) {
+        Integer held = heldByStage.get(stage);
+        int count = (held == null ? 0 : held) + delta;
+        if (count == 0)
+            heldByStage.remove(stage);
+        else
+            heldByStage.put(stage, count);
+    }
+
+    /**
+     * The class that called into the pool, without its outer class.
+     */
+    private static String stageOf(Throwable site) {
+        for (StackTraceElement element : site.getStackTrace()) {
+            String className = element.getClassName();
+            if (className.equals(BufferTracker.class.getName()) || className.equals(ByteBufferPool.class.getName()))
+                continue;
+            return className.substring(Math.max(className.lastIndexOf('.'), className.lastIndexOf('$')) + 1);
+        }
+        return "unknown";
+    }
+
+    private static class Tracker extends WeakReference<ByteBuffer> {
+        final int hash;
+        final Throwable site;
+        String stage;
+        Tracker next;
+
+        Tracker(ByteBuffer buffer, Throwable site, String stage) {
+            super(buffer, collected);
+            this.hash = System.identityHashCode(buffer);
+            this.site = site;
+            this.stage = stage;
+        }
+    }
+}
@@ -16,30 +16,340 @@
 
 package xyz.hexene.localvpn;
 
+import com.socks.library.KLog;
+
 import java.nio.ByteBuffer;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Direct packet buffers, carved out of larger slabs.
+ *
+ * Each thread keeps a small cache and trades with the shared depot in batches, so the depot
+ * lock is taken once per several buffers. The depot keeps the free buffers of each slab
+ * apart and hands out those of the busiest slab first, so the others stay whole. Memory is
+ * accounted per slab: one is only allocated while the total stays within MEMORY_BUDGET, past
+ * it acquire() hands out heap buffers that release() drops. A timer task frees the slabs whose
+ * buffers all sat in the depot for a whole interval, so an idle app gives its memory back;
+ * a slab with a single buffer out stays, that buffer still holds on to its native memory.
+ */
 class ByteBufferPool
 {
-    private static final int BUFFER_SIZE = 1500;//8192; // XXX: Is this ideal?
-    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    // One packet of the TUN interface
+    public static final int BUFFER_SIZE = LocalVPNService.MTU;
+    private static final int CAPACITY = BUFFER_SIZE + 20;
+
+    private static final String TAG = ByteBufferPool.class.getSimpleName();
+    private static final int SLAB_SIZE = Math.max(256 * 1024, CAPACITY);
+    private static final int BUFFERS_PER_SLAB = SLAB_SIZE / CAPACITY;
+    private static final long MEMORY_BUDGET = 8 * 1024 * 1024;
+    private static final long TRIM_INTERVAL = 30 * 1000;
+    // Per thread, half of it moves to or from the depot at once
+    private static final int CACHE_SIZE = 64;
+    // Records who holds each buffer and reports the ones collected unreleased, see BufferTracker
+    static final boolean TRACK_LEAKS = false;
+
+    private static final AtomicLong reservedBytes = new AtomicLong();
+    private static final AtomicLong overBudget = new AtomicLong();
+    private static final AtomicLong foreignReleases = new AtomicLong();
+
+    // The depot, guarded by itself
+    private static final ArrayList<Slab> slabs = new ArrayList<>();
+    private static final IdentityHashMap<ByteBuffer, Slab> slabOf = new IdentityHashMap<>();
+
+    // Bumped by clear(), caches of an older generation are abandoned
+    private static volatile int generation;
+    private static final ArrayList<ThreadCache> threadCaches = new ArrayList<>();
+    private static final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<>();
+    private static Trimmer trimmer;
 
     public static ByteBuffer acquire()
     {
-        ByteBuffer buffer = pool.poll();
-        if (buffer == null)
-            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE+20); // Using DirectBuffer for zero-copy
-        return buffer;
+        ThreadCache cache = cache();
+        ByteBuffer buffer = cache.free.pollLast();
+        if (buffer == null) {
+            synchronized (slabs) {
+                takeFromDepot(cache.free, CACHE_SIZE / 2);
+            }
+            buffer = cache.free.pollLast();
+        }
+        if (buffer != null) {
+            cache.hits++;
+            return track(buffer);
+        }
+
+        cache.misses++;
+        if (reservedBytes.addAndGet(SLAB_SIZE) > MEMORY_BUDGET) {
+            reservedBytes.addAndGet(-SLAB_SIZE);
+            overBudget.incrementAndGet();
+            return track(ByteBuffer.allocate(CAPACITY));
+        }
+        return track(carve(cache.free));
     }
 
     public static void release(ByteBuffer buffer)
     {
+        if (TRACK_LEAKS && !BufferTracker.released(buffer))
+            return;
+        if (!buffer.isDirect() || buffer.capacity() != CAPACITY) {
+            // Allocated past the budget, or not by the pool at all
+            if (buffer.isDirect())
+                foreignReleases.incrementAndGet();
+            return;
+        }
         buffer.clear();
-        pool.offer(buffer);
+
+        ArrayDeque<ByteBuffer> local = cache().free;
+        local.addLast(buffer);
+        if (local.size() > CACHE_SIZE) {
+            synchronized (slabs) {
+                for (int i = CACHE_SIZE / 2; i > 0; i--) {
+                    ByteBuffer returned = local.pollFirst();
+                    Slab slab = slabOf.get(returned);
+                    // Null for a buffer handed out before clear(), it just goes
+                    if (slab != null)
+                        slab.free.addLast(returned);
+                    else
+                        foreignReleases.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that a long-lived holder, rather than the stage that acquired it, owns the buffer.
+     */
+    public static void setOwner(ByteBuffer buffer, String stage)
+    {
+        if (TRACK_LEAKS)
+            BufferTracker.transferred(buffer, stage);
+    }
+
+    /**
+     * Starts trimming the pool when the VPN starts, the timer wheel forgets its tasks on stop.
+     */
+    public static synchronized void startTrimming()
+    {
+        if (trimmer != null)
+            trimmer.cancelled = true;
+        trimmer = new Trimmer();
+        TimerWheel.getInstance().schedule(trimmer);
     }
 
+    /**
+     * Forgets every pooled buffer, they are freed once the buffers in flight are dropped too.
+     */
     public static void clear()
     {
-        pool.clear();
+        KLog.d(TAG, stats());
+        synchronized (ByteBufferPool.class) {
+            if (trimmer != null)
+                trimmer.cancelled = true;
+            trimmer = null;
+        }
+        synchronized (threadCaches) {
+            generation++;
+            threadCaches.clear();
+        }
+        synchronized (slabs) {
+            slabs.clear();
+            slabOf.clear();
+            reservedBytes.set(0);
+        }
+        if (TRACK_LEAKS)
+            BufferTracker.clear();
+    }
+
+    /**
+     * Counters: cache or depot hits, misses that had to carve a slab, slabs and buffers free
+     * and in use. Reads other threads' counters without synchronization, so only approximate.
+     */
+    public static String stats()
+    {
+        long hits = 0, misses = 0, free = 0, cached = 0;
+        int slabCount, idleSlabs = 0;
+        synchronized (slabs) {
+            slabCount = slabs.size();
+            for (Slab slab : slabs) {
+                free += slab.free.size();
+                if (slab.free.size() == BUFFERS_PER_SLAB)
+                    idleSlabs++;
+            }
+        }
+        synchronized (threadCaches) {
+            for (ThreadCache cache : threadCaches) {
+                hits += cache.hits;
+                misses += cache.misses;
+                cached += cache.free.size();
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append("reserved = ").append(reservedBytes.get() / 1024).append("K/")
+                .append(MEMORY_BUDGET / 1024).append("K slabs = ").append(slabCount)
+                .append(" (").append(idleSlabs).append(" unused) overBudget = ").append(overBudget.get())
+                .append(" foreign = ").append(foreignReleases.get())
+                .append(" | ").append(CAPACITY).append(": hits = ").append(hits)
+                .append(" misses = ").append(misses).append(" free = ").append(free + cached)
+                .append(" inUse = ").append((long) slabCount * BUFFERS_PER_SLAB - free - cached);
+        if (TRACK_LEAKS)
+            builder.append(" | ").append(BufferTracker.report());
+        return builder.toString();
+    }
+
+    private static ByteBuffer track(ByteBuffer buffer)
+    {
+        if (TRACK_LEAKS)
+            BufferTracker.acquired(buffer);
+        return buffer;
+    }
+
+    /**
+     * Moves up to count buffers to a thread's cache, from the slab with the fewest free ones.
+     * Caller holds the depot lock.
+     */
+    private static void takeFromDepot(ArrayDeque<ByteBuffer> local, int count)
+    {
+        while (count > 0) {
+            Slab busiest = null;
+            for (int i = 0; i < slabs.size(); i++) {
+                Slab slab = slabs.get(i);
+                if (!slab.free.isEmpty() && (busiest == null || slab.free.size() < busiest.free.size()))
+                    busiest = slab;
+            }
+            if (busiest == null)
+                return;
+            busiest.idle = false;
+            for (; count > 0 && !busiest.free.isEmpty(); count--)
+                local.addLast(busiest.free.pollLast());
+        }
+    }
+
+    /**
+     * Splits a new slab into buffers, keeping one, caching some and leaving the rest in the
+     * depot. The budget was already charged for it.
+     */
+    private static ByteBuffer carve(ArrayDeque<ByteBuffer> local)
+    {
+        ByteBuffer memory = ByteBuffer.allocateDirect(SLAB_SIZE);
+        Slab slab = new Slab();
+        ByteBuffer[] buffers = new ByteBuffer[BUFFERS_PER_SLAB];
+        // The tail that doesn't make a whole buffer is never handed out
+        for (int i = 0; i < BUFFERS_PER_SLAB; i++) {
+            memory.limit((i + 1) * CAPACITY).position(i * CAPACITY);
+            buffers[i] = memory.slice();
+        }
+        synchronized (slabs) {
+            slabs.add(slab);
+            for (int i = 0; i < BUFFERS_PER_SLAB; i++) {
+                slabOf.put(buffers[i], slab);
+                if (i == 0)
+                    continue;
+                if (local.size() < CACHE_SIZE / 2)
+                    local.addLast(buffers[i]);
+                else
+                    slab.free.addLast(buffers[i]);
+            }
+        }
+        return buffers[0];
+    }
+
+    private static ThreadCache cache()
+    {
+        ThreadCache cache = threadCache.get();
+        if (cache == null || cache.generation != generation) {
+            cache = new ThreadCache();
+            synchronized (threadCaches) {
+                cache.generation = generation;
+                threadCaches.add(cache);
+            }
+            threadCache.set(cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Frees the slabs that were already whole in the depot at the last trim and still are.
+     */
+    static void trim()
+    {
+        int trimmed = 0;
+        synchronized (slabs) {
+            for (int i = slabs.size() - 1; i >= 0; i--) {
+                Slab slab = slabs.get(i);
+                if (slab.free.size() < BUFFERS_PER_SLAB)
+                    continue;
+                if (!slab.idle) {
+                    slab.idle = true;
+                    continue;
+                }
+                for (ByteBuffer buffer : slab.free)
+                    slabOf.remove(buffer);
+                slabs.set(i, slabs.get(slabs.size() - 1));
+                slabs.remove(slabs.size() - 1);
+                trimmed++;
+            }
+            reservedBytes.addAndGet(-(long) trimmed * SLAB_SIZE);
+        }
+        if (trimmed > 0)
+            KLog.d(TAG, "trimmed " + trimmed + " slabs");
+    }
+
+    private static class Slab
+    {
+        // Guarded by the depot lock
+        final ArrayDeque<ByteBuffer> free = new ArrayDeque<>(BUFFERS_PER_SLAB);
+        // Whole in the depot since the last trim
+        boolean idle;
+    }
+
+    private static class ThreadCache
+    {
+        final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        long hits;
+        long misses;
+        int generation;
+    }
+
+    private static class Trimmer implements TimerWheel.Task
+    {
+        private volatile long lastTrim = TimerWheel.now();
+        volatile boolean cancelled;
+        // Guarded by the TimerWheel
+        private long scheduledTick;
+
+        @Override
+        public long getDeadline()
+        {
+            return lastTrim + TRIM_INTERVAL;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        @Override
+        public long getScheduledTick()
+        {
+            return scheduledTick;
+        }
+
+        @Override
+        public void setScheduledTick(long tick)
+        {
+            scheduledTick = tick;
+        }
+
+        @Override
+        public void expire()
+        {
+            trim();
+            KLog.d(TAG, stats());
+            lastTrim = TimerWheel.now();
+            TimerWheel.getInstance().schedule(this);
+        }
     }
 }
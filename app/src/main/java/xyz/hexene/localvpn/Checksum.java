@@ -0,0 +1,74 @@
+package xyz.hexene.localvpn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Internet checksum (RFC 1071) helpers. Sums are kept as unfolded longs until the end
+ * and folded to 16 bits once.
+ */
+final class Checksum {
+    private Checksum() {
+    }
+
+    /**
+     * Ones' complement sum of length bytes at offset, as 16-bit big-endian words.
+     * An odd trailing byte is padded with zero. Absolute reads, the buffer's position is untouched.
+     *
+     * Reads 64 bits at a time and adds both 32-bit halves into a long, so carries only have to
+     * be folded once at the end (2^31 words before the accumulator could overflow). The sum is
+     * byte order independent (RFC 1071 2.(B)), a little-endian buffer only needs a swap at the end.
+     */
+    public static int sum(ByteBuffer buffer, int offset, int length) {
+        long sum = 0;
+        long sum2 = 0;
+        int end = offset + length;
+        int index = offset;
+        // Two independent accumulators keep the adds from serializing on one register
+        while (index + 32 <= end) {
+            long word0 = buffer.getLong(index);
+            long word1 = buffer.getLong(index + 8);
+            long word2 = buffer.getLong(index + 16);
+            long word3 = buffer.getLong(index + 24);
+            sum += (word0 >>> 32) + (word0 & 0xFFFFFFFFL) + (word1 >>> 32) + (word1 & 0xFFFFFFFFL);
+            sum2 += (word2 >>> 32) + (word2 & 0xFFFFFFFFL) + (word3 >>> 32) + (word3 & 0xFFFFFFFFL);
+            index += 32;
+        }
+        sum += sum2;
+        while (index + 8 <= end) {
+            long word = buffer.getLong(index);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            index += 8;
+        }
+        if (index + 4 <= end) {
+            sum += buffer.getInt(index) & 0xFFFFFFFFL;
+            index += 4;
+        }
+        if (index + 2 <= end) {
+            sum += buffer.getShort(index) & 0xFFFF;
+            index += 2;
+        }
+
+        int folded = fold(sum);
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN)
+            folded = Integer.reverseBytes(folded) >>> 16;
+
+        if (index < end)
+            folded = fold(folded + ((buffer.get(index) & 0xFF) << 8));
+        return folded;
+    }
+
+    public static int fold(long sum) {
+        while (sum >> 16 != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        return (int) sum;
+    }
+
+    /**
+     * Incrementally updates a checksum for one 16-bit field changing from oldWord to newWord,
+     * per RFC 1624 eqn. 3: HC' = ~(~HC + ~m + m')
+     */
+    public static int update(int checksum, int oldWord, int newWord) {
+        return ~fold((~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF)) & 0xFFFF;
+    }
+}
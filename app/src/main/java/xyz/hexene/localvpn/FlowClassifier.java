@@ -0,0 +1,64 @@
+package xyz.hexene.localvpn;
+
+import com.socks.library.KLog;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import xyz.hexene.localvpn.TCB.FlowClass;
+
+/**
+ * Decides once per flow whether its payload is worth inspecting, so everything but the game
+ * API passes through without being copied or parsed.
+ *
+ * A flow that isn't on the HTTP port is OPAQUE from its SYN on. One on the HTTP port is
+ * classified by its first request line. Addresses that have served a game API request are
+ * remembered, and later flows to them are GAME_API from the start, as the game server also
+ * serves its assets and a keep-alive flow can carry both. A STATIC_ASSET flow only has the
+ * start of each segment compared against the API path, without a copy, and is moved to
+ * GAME_API if it matches.
+ */
+class FlowClassifier {
+    private static final String TAG = FlowClassifier.class.getSimpleName();
+    private static final int HTTP_PORT = 80;
+    private static final String GAME_API_PATH = "/kcsapi/";
+    private static final String GAME_API_POST = "POST " + GAME_API_PATH;
+    private static final String GAME_API_GET = "GET " + GAME_API_PATH;
+
+    private static final Set<Integer> gameServers = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * At the SYN, from the destination alone.
+     */
+    public static FlowClass classify(int destinationAddress, int destinationPort) {
+        if (destinationPort != HTTP_PORT)
+            return FlowClass.OPAQUE;
+        if (gameServers.contains(destinationAddress))
+            return FlowClass.GAME_API;
+        return FlowClass.UNCLASSIFIED;
+    }
+
+    /**
+     * At the first payload from the device of an UNCLASSIFIED flow, or at any payload of a
+     * STATIC_ASSET flow.
+     */
+    public static FlowClass classify(int destinationAddress, ByteBuffer payload, FlowClass current) {
+        if (isGameApiRequest(payload)) {
+            if (gameServers.add(destinationAddress))
+                KLog.d(TAG, "game server " + Packet.addressToString(destinationAddress));
+            return FlowClass.GAME_API;
+        }
+        if (current != FlowClass.UNCLASSIFIED)
+            return current;
+        if (httpPacket.startsWith(payload, "GET ") || httpPacket.startsWith(payload, "POST")
+                || httpPacket.startsWith(payload, "HEAD"))
+            return FlowClass.STATIC_ASSET;
+        return FlowClass.OPAQUE;
+    }
+
+    public static boolean isGameApiRequest(ByteBuffer payload) {
+        return httpPacket.startsWith(payload, GAME_API_POST) || httpPacket.startsWith(payload, GAME_API_GET);
+    }
+}
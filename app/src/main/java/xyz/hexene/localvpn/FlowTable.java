@@ -0,0 +1,207 @@
+package xyz.hexene.localvpn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent open-addressing hash table from a flow key to its TCB/UDB.
+ *
+ * Keys are built by key(); the source address is always the VPN address, so destination
+ * address and both ports identify a flow and fit in one long. Lookups don't allocate or box.
+ *
+ * The table is split into segments by the high hash bits. get() takes no lock: slots hold
+ * immutable entries and removal leaves a tombstone, so a reader never sees a half-moved probe
+ * chain. Writers lock only their segment, and a segment is rebuilt into a new array once
+ * tombstones pile up. Eviction isn't tied to access order, see TimerWheel.
+ */
+class FlowTable<V> {
+    private static final int SEGMENT_SHIFT = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_SHIFT;
+    // 0.0.0.0:0 from port 0 is never a real flow, so the tombstone's key never matches
+    private static final Entry TOMBSTONE = new Entry(0, null);
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public FlowTable(int expectedSize) {
+        int segmentCapacity = tableCapacity(expectedSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentCapacity);
+    }
+
+    public static long key(int destinationAddress, int destinationPort, int sourcePort) {
+        return (long) destinationAddress << 32 | (long) (destinationPort & 0xFFFF) << 16 | (sourcePort & 0xFFFF);
+    }
+
+    public static int destinationAddress(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Spreads flows over a number of owners, the same owner for every packet of a flow.
+     */
+    public static int shard(long key, int shards) {
+        return (hash(key) & 0x7FFFFFFF) % shards;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private static int tableCapacity(int size) {
+        // Keep live entries and tombstones under half the slots
+        return Integer.highestOneBit(Math.max(size, 4) * 4 - 1) << 1;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_SHIFT)];
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size;
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int hash = hash(key);
+        AtomicReferenceArray<Entry> table = segmentFor(hash).table;
+        int mask = table.length() - 1;
+        int slot = hash & mask;
+        Entry entry;
+        while ((entry = table.get(slot)) != null) {
+            if (entry.key == key)
+                return (V) entry.value;
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            AtomicReferenceArray<Entry> table = segment.table;
+            int mask = table.length() - 1;
+            int slot = hash & mask;
+            int free = -1;
+            Entry entry;
+            while ((entry = table.get(slot)) != null) {
+                if (entry == TOMBSTONE) {
+                    if (free < 0)
+                        free = slot;
+                } else if (entry.key == key) {
+                    table.set(slot, new Entry(key, value));
+                    return (V) entry.value;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (free >= 0) {
+                table.set(free, new Entry(key, value));
+            } else {
+                table.set(slot, new Entry(key, value));
+                segment.used++;
+            }
+            segment.size++;
+            if (segment.used > table.length() >> 1)
+                segment.rebuild();
+            return null;
+        }
+    }
+
+    /**
+     * Removes the entry only if it still maps to value, so closing an old flow
+     * can't drop a newer one that reused its ports.
+     */
+    public boolean remove(long key, V value) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            AtomicReferenceArray<Entry> table = segment.table;
+            int mask = table.length() - 1;
+            int slot = hash & mask;
+            Entry entry;
+            while ((entry = table.get(slot)) != null) {
+                if (entry.key == key) {
+                    if (entry.value != value)
+                        return false;
+                    table.set(slot, TOMBSTONE);
+                    segment.size--;
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Removes and returns every value.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> clear() {
+        List<V> removed = new ArrayList<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                AtomicReferenceArray<Entry> table = segment.table;
+                for (int slot = 0; slot < table.length(); slot++) {
+                    Entry entry = table.get(slot);
+                    if (entry != null && entry != TOMBSTONE)
+                        removed.add((V) entry.value);
+                }
+                segment.table = new AtomicReferenceArray<>(table.length());
+                segment.size = 0;
+                segment.used = 0;
+            }
+        }
+        return removed;
+    }
+
+    private static final class Entry {
+        final long key;
+        final Object value;
+
+        Entry(long key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Segment {
+        volatile AtomicReferenceArray<Entry> table;
+        // Written under the segment lock, read racily by size()
+        volatile int size;
+        // Live entries plus tombstones
+        int used;
+
+        Segment(int capacity) {
+            table = new AtomicReferenceArray<>(capacity);
+        }
+
+        /**
+         * Copies the live entries into a fresh array, dropping tombstones. Readers still
+         * probing the old array see it as it was; it is never written again.
+         */
+        void rebuild() {
+            AtomicReferenceArray<Entry> oldTable = table;
+            AtomicReferenceArray<Entry> newTable = new AtomicReferenceArray<>(tableCapacity(size));
+            int mask = newTable.length() - 1;
+            for (int i = 0; i < oldTable.length(); i++) {
+                Entry entry = oldTable.get(i);
+                if (entry == null || entry == TOMBSTONE)
+                    continue;
+                int slot = hash(entry.key) & mask;
+                while (newTable.get(slot) != null)
+                    slot = (slot + 1) & mask;
+                newTable.set(slot, entry);
+            }
+            used = size;
+            table = newTable;
+        }
+    }
+}
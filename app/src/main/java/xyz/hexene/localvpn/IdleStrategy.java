@@ -0,0 +1,57 @@
+package xyz.hexene.localvpn;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Back-off used by loops that have no readiness signal to block on.
+ * Spins first, then yields, then parks for an exponentially growing time.
+ * Instances are not thread safe, each loop owns its own.
+ */
+class IdleStrategy {
+    private final int maxSpins;
+    private final int maxYields;
+    private final long minParkNanos;
+    private final long maxParkNanos;
+
+    private int spins;
+    private int yields;
+    private long parkNanos;
+
+    public IdleStrategy(int maxSpins, int maxYields, long minParkNanos, long maxParkNanos) {
+        this.maxSpins = maxSpins;
+        this.maxYields = maxYields;
+        this.minParkNanos = minParkNanos;
+        this.maxParkNanos = maxParkNanos;
+        reset();
+    }
+
+    public static IdleStrategy backoff(long maxParkMillis) {
+        return new IdleStrategy(100, 10, TimeUnit.MICROSECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(maxParkMillis));
+    }
+
+    /**
+     * Called when an iteration of the loop did no work.
+     */
+    public void idle() {
+        if (spins < maxSpins) {
+            spins++;
+        } else if (yields < maxYields) {
+            yields++;
+            Thread.yield();
+        } else {
+            // Returns early on unpark() or interrupt, the caller re-checks its own state
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos << 1, maxParkNanos);
+        }
+    }
+
+    /**
+     * Called when an iteration of the loop did some work.
+     */
+    public void reset() {
+        spins = 0;
+        yields = 0;
+        parkNanos = minParkNanos;
+    }
+}
@@ -0,0 +1,44 @@
+package xyz.hexene.localvpn;
+
+import android.os.Debug;
+
+import com.socks.library.KLog;
+
+/**
+ * Bytes per read or write system call, calls per MB and the CPU time the calling thread spent
+ * per MB, logged every LOG_INTERVAL calls. Used to compare TUN MTUs and read sizes on a device.
+ * A "call" can be any event that moves bytes, e.g. a selector wakeup.
+ * Instances are not thread safe, each loop owns its own.
+ */
+class IoStats {
+    private static final int LOG_INTERVAL = 10000;
+
+    private final String tag;
+    private final String name;
+    private long calls;
+    private long bytes;
+    private long startCpuNanos = -1;
+
+    public IoStats(String tag, String name) {
+        this.tag = tag;
+        this.name = name;
+    }
+
+    public void record(int transferred) {
+        if (startCpuNanos < 0)
+            startCpuNanos = Debug.threadCpuTimeNanos();
+        calls++;
+        bytes += transferred;
+        if (calls % LOG_INTERVAL == 0)
+            log();
+    }
+
+    public void log() {
+        if (calls == 0)
+            return;
+        long cpuNanos = Debug.threadCpuTimeNanos() - startCpuNanos;
+        long megabytes = Math.max(bytes >> 20, 1);
+        KLog.d(tag, name + ": calls = " + calls + " bytes = " + bytes + " bytesPerCall = " + (bytes / calls)
+                + " callsPerMB = " + (calls / megabytes) + " cpuMicrosPerMB = " + (cpuNanos / 1000 / megabytes) + " mtu = " + LocalVPNService.MTU);
+    }
+}
@@ -36,9 +36,13 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.Selector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -54,7 +58,18 @@ public class LocalVPNService extends VpnService {
     public static final String EXTRA_PROXY_PORT = "proxy_port";
     private static final String TAG = LocalVPNService.class.getSimpleName();
     private static final String VPN_ADDRESS = "10.0.0.2"; // Only IPv4 support for now
+    // Up to 65535. Packet buffers, the MSS we advertise and TCPInput's reads all follow it, so
+    // a larger MTU moves more data per TUN read, parse, checksum and queue hop
+    public static final int MTU = 1500;
     private static int SLEEP_TIME = 10;
+    // Each reactor is a TCPInput/TCPOutput pair with its own selector, flows are split by hash
+    private static final int MAX_TCP_REACTORS = 4;
+    // Ring sizes in packets. Device-bound producers wait when theirs is full, the TUN reader
+    // drops instead: it can't stall on one flow, and the device retransmits what it loses
+    private static final int NETWORK_TO_DEVICE_CAPACITY = 1024;
+    private static final int DEVICE_TO_NETWORK_CAPACITY = 512;
+    // Runs the whole TCP path on one thread instead of the reader, writer and reactor threads
+    private static final boolean SINGLE_THREAD_ENGINE = false;
     private static boolean isRunning = false;
     private static boolean mWeProxyAvailability;
     private ParcelFileDescriptor vpnInterface = null;
@@ -71,13 +86,13 @@ public class LocalVPNService extends VpnService {
         }
     };
 
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue;
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue;
-    private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
+    private RingBuffer<ByteBuffer> deviceToNetworkUDPQueue;
+    private List<RingBuffer<ByteBuffer>> deviceToNetworkTCPQueues;
+    private RingBuffer<ByteBuffer> networkToDeviceQueue;
     private LinkedBlockingQueue<byte[]> kancolleAPIQueue;
     private ExecutorService executorService;
     private Selector udpSelector;
-    private Selector tcpSelector;
+    private Selector[] tcpSelectors;
     private Context context;
 
     public static boolean isRunning() {
@@ -85,8 +100,10 @@ public class LocalVPNService extends VpnService {
     }
 
     // TODO: Move this to a "utils" class for reuse
-    private static void closeResources(Closeable... resources) {
+    static void closeResources(Closeable... resources) {
         for (Closeable resource : resources) {
+            if (resource == null)
+                continue;
             try {
                 resource.close();
             } catch (IOException e) {
@@ -111,27 +128,49 @@ public class LocalVPNService extends VpnService {
         isRunning = true;
         setupVPN();
 
+        if (SINGLE_THREAD_ENGINE) {
+            startSingleThreadEngine();
+            return;
+        }
+
         try {
+            int tcpReactors = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / 2, MAX_TCP_REACTORS));
             udpSelector = Selector.open();
-            tcpSelector = Selector.open();
-            deviceToNetworkUDPQueue = new ConcurrentLinkedQueue<>();
-            deviceToNetworkTCPQueue = new ConcurrentLinkedQueue<>();
-            networkToDeviceQueue = new ConcurrentLinkedQueue<>();
+            tcpSelectors = new Selector[tcpReactors];
+            deviceToNetworkUDPQueue = new RingBuffer<>(DEVICE_TO_NETWORK_CAPACITY, false,
+                    RingBuffer.Overflow.DROP, RingBuffer.Wait.PARK);
+            deviceToNetworkTCPQueues = new ArrayList<>(tcpReactors);
+            // Written by every TCPInput and TCPOutput
+            networkToDeviceQueue = new RingBuffer<>(NETWORK_TO_DEVICE_CAPACITY, true,
+                    RingBuffer.Overflow.BLOCK, RingBuffer.Wait.PARK);
             kancolleAPIQueue = new LinkedBlockingQueue<>();
 
-            int nThreads = 6;
+            int nThreads = 4 + 2 * tcpReactors;
             // TODO: 15-12-15 use weproxy config
             executorService = Executors.newFixedThreadPool(nThreads);
 
             //executorService.submit(new UDPInput(networkToDeviceQueue, udpSelector));
             //executorService.submit(new UDPOutput(deviceToNetworkUDPQueue, udpSelector, this));
-            executorService.submit(new TCPInput(networkToDeviceQueue,kancolleAPIQueue, tcpSelector));
-            executorService.submit(new TCPOutput(deviceToNetworkTCPQueue, networkToDeviceQueue, kancolleAPIQueue, tcpSelector, this));
+            for (int i = 0; i < tcpReactors; i++) {
+                Selector tcpSelector = Selector.open();
+                RingBuffer<ByteBuffer> deviceToNetworkTCPQueue = new RingBuffer<>(DEVICE_TO_NETWORK_CAPACITY, false,
+                        RingBuffer.Overflow.DROP, RingBuffer.Wait.PARK);
+                tcpSelectors[i] = tcpSelector;
+                deviceToNetworkTCPQueues.add(deviceToNetworkTCPQueue);
+                SelectorCommandQueue selectorCommands = new SelectorCommandQueue(tcpSelector);
+                executorService.submit(new TCPInput(networkToDeviceQueue, kancolleAPIQueue, selectorCommands));
+                executorService.submit(new TCPOutput(deviceToNetworkTCPQueue, networkToDeviceQueue, kancolleAPIQueue, selectorCommands, this));
+            }
+            KLog.i(TAG, "TCP reactors = " + tcpReactors);
 
-            executorService.submit(new VPNRunnable(vpnInterface.getFileDescriptor(), deviceToNetworkUDPQueue, deviceToNetworkTCPQueue, networkToDeviceQueue));
+            FileChannel vpnInput = new FileInputStream(vpnInterface.getFileDescriptor()).getChannel();
+            executorService.submit(new VPNRunnable(vpnInput, IdleStrategy.backoff(SLEEP_TIME),
+                    deviceToNetworkUDPQueue, deviceToNetworkTCPQueues));
             executorService.submit(new VPNOutput(vpnInterface.getFileDescriptor(), networkToDeviceQueue));
 
             executorService.submit(new Kancolle(kancolleAPIQueue,this));
+            executorService.submit(TimerWheel.getInstance());
+            ByteBufferPool.startTrimming();
 
             sendBroadcast(new Intent(ACTION_VPN_RUNNING).putExtra("running", true));
             KLog.i(TAG, "sendBroadcast " + ACTION_VPN_RUNNING);
@@ -143,6 +182,25 @@ public class LocalVPNService extends VpnService {
         }
     }
 
+    private void startSingleThreadEngine() {
+        try {
+            tcpSelectors = new Selector[]{Selector.open()};
+            kancolleAPIQueue = new LinkedBlockingQueue<>();
+            executorService = Executors.newFixedThreadPool(3);
+            executorService.submit(new SingleThreadEngine(vpnInterface.getFileDescriptor(), tcpSelectors[0],
+                    SLEEP_TIME, kancolleAPIQueue, this));
+            executorService.submit(new Kancolle(kancolleAPIQueue, this));
+            executorService.submit(TimerWheel.getInstance());
+            ByteBufferPool.startTrimming();
+
+            sendBroadcast(new Intent(ACTION_VPN_RUNNING).putExtra("running", true));
+            KLog.i(TAG, "sendBroadcast " + ACTION_VPN_RUNNING);
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting service", e);
+            cleanup();
+        }
+    }
+
     private void setupVPN() {
         if (vpnInterface == null) {
             Intent statusActivityIntent = new Intent(this, LocalVPN.class);
@@ -150,6 +208,7 @@ public class LocalVPNService extends VpnService {
 
             Builder builder = new Builder();
             builder.addAddress(VPN_ADDRESS, 32);
+            builder.setMtu(MTU);
             builder.addDnsServer("8.8.8.8");
             //builder.addRoute("0.0.0.0",0);
 //            builder.addRoute("203.0.0.0",8);
@@ -173,6 +232,9 @@ public class LocalVPNService extends VpnService {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 KLog.i(TAG, "allowFamily AF_INET");
                 builder.allowFamily(OsConstants.AF_INET);
+                // Let VPNRunnable sleep in read() instead of polling the interface; the single
+                // thread engine also has sockets to serve, so it needs reads that return at once
+                builder.setBlocking(!SINGLE_THREAD_ENGINE);
             }
             try {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -211,94 +273,129 @@ public class LocalVPNService extends VpnService {
 
     private void cleanup() {
         KLog.i(TAG, "cleanup");
-        deviceToNetworkTCPQueue = null;
+        deviceToNetworkTCPQueues = null;
         deviceToNetworkUDPQueue = null;
         networkToDeviceQueue = null;
+        // Once here rather than in each reactor, so no reactor closes another's flows
+        TCB.closeAll();
         ByteBufferPool.clear();
-        closeResources(udpSelector, tcpSelector, vpnInterface);
+        if (tcpSelectors != null)
+            closeResources(tcpSelectors);
+        closeResources(udpSelector, vpnInterface);
     }
 
-    private static class VPNRunnable implements Runnable {
+    /**
+     * Reads packets from the TUN interface. The channel is normally in blocking mode, so the
+     * thread sleeps in read() until the device sends something. Descriptors that can't be made
+     * blocking (before Lollipop) return 0 when empty and fall back to the idle strategy.
+     */
+    static class VPNRunnable implements Runnable {
         private static final String TAG = VPNRunnable.class.getSimpleName();
-
-        private FileDescriptor vpnFileDescriptor;
-
-        private ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue;
-        private ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue;
-        private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
-
-        public VPNRunnable(FileDescriptor vpnFileDescriptor,
-                           ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue,
-                           ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue,
-                           ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue) {
-            this.vpnFileDescriptor = vpnFileDescriptor;
+        private static final int DROP_LOG_INTERVAL = 1000;
+
+        private ReadableByteChannel vpnInput;
+        private IdleStrategy idleStrategy;
+        private final Packet packet = new Packet();
+        private final IoStats readStats = new IoStats(TAG, "TUN reads");
+
+        private RingBuffer<ByteBuffer> deviceToNetworkUDPQueue;
+        // One per TCP reactor, a flow always goes to the same one
+        private List<RingBuffer<ByteBuffer>> deviceToNetworkTCPQueues;
+
+        public VPNRunnable(ReadableByteChannel vpnInput, IdleStrategy idleStrategy,
+                           RingBuffer<ByteBuffer> deviceToNetworkUDPQueue,
+                           List<RingBuffer<ByteBuffer>> deviceToNetworkTCPQueues) {
+            this.vpnInput = vpnInput;
+            this.idleStrategy = idleStrategy;
             this.deviceToNetworkUDPQueue = deviceToNetworkUDPQueue;
-            this.deviceToNetworkTCPQueue = deviceToNetworkTCPQueue;
-            this.networkToDeviceQueue = networkToDeviceQueue;
+            this.deviceToNetworkTCPQueues = deviceToNetworkTCPQueues;
+        }
+
+        private RingBuffer<ByteBuffer> tcpQueueFor(Packet packet) {
+            int reactors = deviceToNetworkTCPQueues.size();
+            if (reactors == 1)
+                return deviceToNetworkTCPQueues.get(0);
+            long key = FlowTable.key(packet.ip4Header.getDestinationAddress(),
+                    packet.tcpHeader.getDestinationPort(), packet.tcpHeader.getSourcePort());
+            return deviceToNetworkTCPQueues.get(FlowTable.shard(key, reactors));
         }
 
         @Override
         public void run() {
             KLog.i(TAG, "Started");
 
-            FileChannel vpnInput = new FileInputStream(vpnFileDescriptor).getChannel();
-            //FileChannel vpnOutput = new FileOutputStream(vpnFileDescriptor).getChannel();
-
+            ByteBuffer bufferToNetwork = ByteBufferPool.acquire();
             try {
-                ByteBuffer bufferToNetwork = null;
-                ByteBuffer bufferFromNetwork;
-                boolean dataSent = true;
-                boolean dataReceived = false;
 
                 while (!Thread.interrupted()) {
-                    if (dataSent)
-                        bufferToNetwork = ByteBufferPool.acquire();
-                    else
-                        bufferToNetwork.clear();
-
-                    // TODO: Block when not connected
                     int readBytes = vpnInput.read(bufferToNetwork);
                     if (readBytes > 0) {
-                        dataSent = true;
+                        readStats.record(readBytes);
+                        idleStrategy.reset();
                         bufferToNetwork.flip();
-                        Packet packet = new Packet(bufferToNetwork);
+                        packet.wrap(bufferToNetwork);
 
+                        RingBuffer<ByteBuffer> queue;
                         if (packet.isUDP()) {
-                            deviceToNetworkUDPQueue.offer(packet);
+                            queue = deviceToNetworkUDPQueue;
                         } else if (packet.isTCP()) {
-                            deviceToNetworkTCPQueue.offer(packet);
+                            queue = tcpQueueFor(packet);
                         } else {
                             KLog.w(TAG, "Unknown packet = " + packet.ip4Header.toString());
-                            dataSent = false;
+                            bufferToNetwork.clear();
+                            continue;
                         }
+                        if (!queue.offer(bufferToNetwork)) {
+                            // Full, reuse the buffer for the next read
+                            if (queue.getDropped() % DROP_LOG_INTERVAL == 1)
+                                KLog.w(TAG, "Queue full, dropping: " + queue);
+                            bufferToNetwork.clear();
+                            continue;
+                        }
+                        bufferToNetwork = ByteBufferPool.acquire();
+                    } else if (readBytes == 0) {
+                        // Only a non-blocking descriptor gets here
+                        idleStrategy.idle();
                     } else {
-                        dataSent = false;
-                    }
-                    // TODO: Sleep-looping is not very battery-friendly, consider blocking instead
-                    // Confirm if throughput with ConcurrentQueue is really higher compared to BlockingQueue
-                    if (!dataSent) {
-                        Thread.sleep(SLEEP_TIME);
+                        KLog.w(TAG, "End of stream");
+                        break;
                     }
                 }
-            } catch (InterruptedException e) {
+            } catch (AsynchronousCloseException e) {
+                // Interrupted or closed by cleanup() while blocked in read()
                 KLog.i(TAG, "Stopping");
             } catch (Exception e) {
                 Log.e(TAG, e.toString(), e);
             } finally {
+                ByteBufferPool.release(bufferToNetwork);
                 closeResources(vpnInput);
+                readStats.log();
                 KLog.i("stopped run");
             }
         }
     }
 
+    /**
+     * Writes packets from the network back to the TUN interface. Producers wake this thread
+     * through the ring; each wakeup writes everything queued before parking again.
+     */
     private static class VPNOutput implements Runnable {
         private static final String TAG = VPNOutput.class.getSimpleName();
+        private static final int MAX_BATCH = 64;
+        private static final int STATS_INTERVAL = 1000; // wakeups
 
         private FileDescriptor vpnFileDescriptor;
-        private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
+        private RingBuffer<ByteBuffer> networkToDeviceQueue;
+        private final IoStats writeStats = new IoStats(TAG, "TUN writes");
+
+        // Packets drained per wakeup, bucketed by powers of two: 1, 2-3, 4-7, ...
+        private long[] drainHistogram = new long[8];
+        private long wakeups;
+        private long packets;
+        private int maxDrained;
 
         public VPNOutput(FileDescriptor vpnFileDescriptor,
-                         ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue) {
+                         RingBuffer<ByteBuffer> networkToDeviceQueue) {
             this.vpnFileDescriptor = vpnFileDescriptor;
             this.networkToDeviceQueue = networkToDeviceQueue;
         }
@@ -307,31 +404,25 @@ public class LocalVPNService extends VpnService {
         public void run() {
             KLog.i(TAG, "Started");
 
-            ByteBuffer bufferFromNetwork;
-            boolean dataReceived = false;
+            ArrayList<ByteBuffer> batch = new ArrayList<>(MAX_BATCH);
             FileChannel vpnOutput = new FileOutputStream(vpnFileDescriptor).getChannel();
 
             try {
                 while (!Thread.interrupted()) {
-                    try {
-                        bufferFromNetwork = networkToDeviceQueue.poll();
-                        if (bufferFromNetwork != null) {
-                            bufferFromNetwork.flip();
-                            while (bufferFromNetwork.hasRemaining()) {
-                                vpnOutput.write(bufferFromNetwork);
-                            }
-                            dataReceived = true;
-                            ByteBufferPool.release(bufferFromNetwork);
-                        } else {
-                            dataReceived = false;
+                    // Parks until a producer offers a packet
+                    ByteBuffer bufferFromNetwork = networkToDeviceQueue.take();
+                    int drained = 0;
+                    while (bufferFromNetwork != null) {
+                        batch.add(bufferFromNetwork);
+                        networkToDeviceQueue.drainTo(batch, MAX_BATCH - 1);
+                        for (int i = 0; i < batch.size(); i++) {
+                            write(vpnOutput, batch.get(i));
                         }
-                    } catch (IOException e) {
-                        Log.e(TAG, e.toString(), e);
-                    }
-
-                    if (!dataReceived) {
-                        Thread.sleep(SLEEP_TIME);
+                        drained += batch.size();
+                        batch.clear();
+                        bufferFromNetwork = networkToDeviceQueue.poll();
                     }
+                    recordDrained(drained);
                 }
             } catch (InterruptedException e) {
                 KLog.i(TAG, "Stopping");
@@ -339,8 +430,45 @@ public class LocalVPNService extends VpnService {
                 Log.e(TAG, e.toString(), e);
             } finally {
                 closeResources(vpnOutput);
+                logStats();
+                writeStats.log();
                 KLog.i("stopped run");
             }
         }
+
+        private void write(FileChannel vpnOutput, ByteBuffer bufferFromNetwork) {
+            try {
+                // One write per packet, the TUN device doesn't accept more than that
+                bufferFromNetwork.flip();
+                while (bufferFromNetwork.hasRemaining()) {
+                    writeStats.record(vpnOutput.write(bufferFromNetwork));
+                }
+            } catch (IOException e) {
+                Log.e(TAG, e.toString(), e);
+            } finally {
+                ByteBufferPool.release(bufferFromNetwork);
+            }
+        }
+
+        private void recordDrained(int drained) {
+            wakeups++;
+            packets += drained;
+            maxDrained = Math.max(maxDrained, drained);
+            int bucket = 31 - Integer.numberOfLeadingZeros(drained);
+            drainHistogram[Math.min(bucket, drainHistogram.length - 1)]++;
+
+            if (wakeups % STATS_INTERVAL == 0) {
+                logStats();
+            }
+        }
+
+        private void logStats() {
+            if (wakeups == 0)
+                return;
+            KLog.d(TAG, "wakeups = " + wakeups + " packets = " + packets
+                    + " avgDrained = " + (packets / wakeups) + " maxDrained = " + maxDrained
+                    + " histogram = " + Arrays.toString(drainHistogram)
+                    + " queue = " + networkToDeviceQueue);
+        }
     }
 }
@@ -22,6 +22,9 @@ import java.nio.ByteBuffer;
 
 /**
  * Representation of an IP Packet
+ *
+ * A flyweight view: the header classes read their fields straight from the backing buffer,
+ * so one instance can be re-pointed at every packet with wrap() without allocating.
  */
 // TODO: Reduce public mutability
 public class Packet {
@@ -29,24 +32,61 @@ public class Packet {
     public static final int TCP_HEADER_SIZE = 20;
     public static final int UDP_HEADER_SIZE = 8;
 
-    public IP4Header ip4Header;
-    public TCPHeader tcpHeader;
-    public UDPHeader udpHeader;
+    public final IP4Header ip4Header = new IP4Header();
+    public final TCPHeader tcpHeader = new TCPHeader();
+    public final UDPHeader udpHeader = new UDPHeader();
     public ByteBuffer backingBuffer;
 
+    private int ip4HeaderLength;
     private boolean isTCP;
     private boolean isUDP;
 
-    public Packet(ByteBuffer buffer) throws UnknownHostException {
-        this.ip4Header = new IP4Header(buffer);
-        if (this.ip4Header.protocol == IP4Header.TransportProtocol.TCP) {
-            this.tcpHeader = new TCPHeader(buffer);
-            this.isTCP = true;
-        } else if (ip4Header.protocol == IP4Header.TransportProtocol.UDP) {
-            this.udpHeader = new UDPHeader(buffer);
-            this.isUDP = true;
-        }
+    public Packet() {
+    }
+
+    public Packet(ByteBuffer buffer) {
+        wrap(buffer);
+    }
+
+    /**
+     * Points this view at the packet starting at index 0 of the buffer, and moves the
+     * buffer's position to the start of the payload.
+     */
+    public Packet wrap(ByteBuffer buffer) {
         this.backingBuffer = buffer;
+        this.ip4HeaderLength = (buffer.get(0) & 0x0F) << 2;
+
+        int protocol = buffer.get(9) & 0xFF;
+        this.isTCP = protocol == TransportProtocol.TCP.getNumber();
+        this.isUDP = protocol == TransportProtocol.UDP.getNumber();
+
+        int transportHeaderLength = 0;
+        if (isTCP)
+            transportHeaderLength = tcpHeader.getHeaderLength();
+        else if (isUDP)
+            transportHeaderLength = UDP_HEADER_SIZE;
+        buffer.position(Math.min(ip4HeaderLength + transportHeaderLength, buffer.limit()));
+        return this;
+    }
+
+    /**
+     * Copies the IP and transport headers, without options, into a buffer of their own.
+     * Used to keep a per-connection reference after the original buffer goes back to the pool.
+     */
+    public Packet duplicateHeaders() {
+        int transportHeaderSize = isTCP ? TCP_HEADER_SIZE : UDP_HEADER_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(IP4_HEADER_SIZE + transportHeaderSize);
+        for (int i = 0; i < IP4_HEADER_SIZE; i++)
+            buffer.put(i, backingBuffer.get(i));
+        for (int i = 0; i < transportHeaderSize; i++)
+            buffer.put(IP4_HEADER_SIZE + i, backingBuffer.get(ip4HeaderLength + i));
+
+        // Options are dropped, so fix up the header lengths
+        buffer.put(0, (byte) (4 << 4 | IP4_HEADER_SIZE >> 2));
+        if (isTCP)
+            buffer.put(IP4_HEADER_SIZE + 12, (byte) (TCP_HEADER_SIZE << 2));
+        buffer.limit(buffer.capacity());
+        return new Packet(buffer);
     }
 
     @Override
@@ -69,222 +109,126 @@ public class Packet {
     }
 
     public void swapSourceAndDestination() {
-        InetAddress newSourceAddress = ip4Header.destinationAddress;
-        ip4Header.destinationAddress = ip4Header.sourceAddress;
-        ip4Header.sourceAddress = newSourceAddress;
-
-        if (isUDP) {
-            int newSourcePort = udpHeader.destinationPort;
-            udpHeader.destinationPort = udpHeader.sourcePort;
-            udpHeader.sourcePort = newSourcePort;
-        } else if (isTCP) {
-            int newSourcePort = tcpHeader.destinationPort;
-            tcpHeader.destinationPort = tcpHeader.sourcePort;
-            tcpHeader.sourcePort = newSourcePort;
+        int newSourceAddress = ip4Header.getDestinationAddress();
+        backingBuffer.putInt(16, ip4Header.getSourceAddress());
+        backingBuffer.putInt(12, newSourceAddress);
+
+        if (isUDP || isTCP) {
+            // Ports sit at the same offsets in both headers
+            short newSourcePort = backingBuffer.getShort(ip4HeaderLength + 2);
+            backingBuffer.putShort(ip4HeaderLength + 2, backingBuffer.getShort(ip4HeaderLength));
+            backingBuffer.putShort(ip4HeaderLength, newSourcePort);
         }
     }
 
-    public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize) {
-        buffer.position(0);
-        fillHeader(buffer);
-        backingBuffer = buffer;
-
-        tcpHeader.flags = flags;
-        backingBuffer.put(IP4_HEADER_SIZE + 13, flags);
-
-        tcpHeader.sequenceNumber = sequenceNum;
-        backingBuffer.putInt(IP4_HEADER_SIZE + 4, (int) sequenceNum);
-
-        tcpHeader.acknowledgementNumber = ackNum;
-        backingBuffer.putInt(IP4_HEADER_SIZE + 8, (int) ackNum);
-
-        // Reset header size, since we don't need options
-        byte dataOffset = (byte) (TCP_HEADER_SIZE << 2);
-        tcpHeader.dataOffsetAndReserved = dataOffset;
-        backingBuffer.put(IP4_HEADER_SIZE + 12, dataOffset);
-
-        updateTCPChecksum(payloadSize);
-
-        int ip4TotalLength = IP4_HEADER_SIZE + TCP_HEADER_SIZE + payloadSize;
-        backingBuffer.putShort(2, (short) ip4TotalLength);
-        ip4Header.totalLength = ip4TotalLength;
-
-        updateIP4Checksum();
-    }
-
     public void updateUDPBuffer(ByteBuffer buffer, int payloadSize) {
+        int headerSize = IP4_HEADER_SIZE + UDP_HEADER_SIZE;
         buffer.position(0);
-        fillHeader(buffer);
-        backingBuffer = buffer;
+        buffer.put(backingBuffer.array(), backingBuffer.arrayOffset(), headerSize);
 
         int udpTotalLength = UDP_HEADER_SIZE + payloadSize;
-        backingBuffer.putShort(IP4_HEADER_SIZE + 4, (short) udpTotalLength);
-        udpHeader.length = udpTotalLength;
+        buffer.putShort(IP4_HEADER_SIZE + 4, (short) udpTotalLength);
 
         // Disable UDP checksum validation
-        backingBuffer.putShort(IP4_HEADER_SIZE + 6, (short) 0);
-        udpHeader.checksum = 0;
+        buffer.putShort(IP4_HEADER_SIZE + 6, (short) 0);
 
         int ip4TotalLength = IP4_HEADER_SIZE + udpTotalLength;
-        backingBuffer.putShort(2, (short) ip4TotalLength);
-        ip4Header.totalLength = ip4TotalLength;
+        buffer.putShort(2, (short) ip4TotalLength);
 
-        updateIP4Checksum();
+        updateIP4Checksum(buffer);
     }
 
-    private void updateIP4Checksum() {
-        ByteBuffer buffer = backingBuffer.duplicate();
-        buffer.position(0);
-
+    private void updateIP4Checksum(ByteBuffer buffer) {
         // Clear previous checksum
         buffer.putShort(10, (short) 0);
-
-        int ipLength = ip4Header.headerLength;
-        int sum = 0;
-        while (ipLength > 0) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            ipLength -= 2;
-        }
-        while (sum >> 16 > 0)
-            sum = (sum & 0xFFFF) + (sum >> 16);
-
-        sum = ~sum;
-        ip4Header.headerChecksum = sum;
-        backingBuffer.putShort(10, (short) sum);
+        buffer.putShort(10, (short) ~Checksum.sum(buffer, 0, IP4_HEADER_SIZE));
     }
 
-    private void updateTCPChecksum(int payloadSize) {
-        int sum;
-        int tcpLength = TCP_HEADER_SIZE + payloadSize;
-
-        // Calculate pseudo-header checksum
-        ByteBuffer buffer = ByteBuffer.wrap(ip4Header.sourceAddress.getAddress());
-        sum = BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
+    public static String addressToString(int address) {
+        return (address >>> 24) + "." + (address >> 16 & 0xFF) + "." + (address >> 8 & 0xFF) + "." + (address & 0xFF);
+    }
 
-        buffer = ByteBuffer.wrap(ip4Header.destinationAddress.getAddress());
-        sum += BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
+    public static InetAddress addressToInetAddress(int address) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{
+                (byte) (address >>> 24), (byte) (address >> 16), (byte) (address >> 8), (byte) address});
+    }
 
-        sum += IP4Header.TransportProtocol.TCP.getNumber() + tcpLength;
+    public enum TransportProtocol {
+        TCP(6),
+        UDP(17),
+        Other(0xFF);
 
-        buffer = backingBuffer.duplicate();
-        // Clear previous checksum
-        buffer.putShort(IP4_HEADER_SIZE + 16, (short) 0);
+        private int protocolNumber;
 
-        // Calculate TCP segment checksum
-        buffer.position(IP4_HEADER_SIZE);
-        while (tcpLength > 1) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            tcpLength -= 2;
+        TransportProtocol(int protocolNumber) {
+            this.protocolNumber = protocolNumber;
         }
-        if (tcpLength > 0)
-            sum += BitUtils.getUnsignedByte(buffer.get()) << 8;
-
-        while (sum >> 16 > 0)
-            sum = (sum & 0xFFFF) + (sum >> 16);
 
-        sum = ~sum;
-        tcpHeader.checksum = sum;
-        backingBuffer.putShort(IP4_HEADER_SIZE + 16, (short) sum);
-    }
+        private static TransportProtocol numberToEnum(int protocolNumber) {
+            if (protocolNumber == 6)
+                return TCP;
+            else if (protocolNumber == 17)
+                return UDP;
+            else
+                return Other;
+        }
 
-    private void fillHeader(ByteBuffer buffer) {
-        ip4Header.fillHeader(buffer);
-        if (isUDP)
-            udpHeader.fillHeader(buffer);
-        else if (isTCP)
-            tcpHeader.fillHeader(buffer);
+        public int getNumber() {
+            return this.protocolNumber;
+        }
     }
 
-    public static class IP4Header {
-        public byte version;
-        public byte IHL;
-        public int headerLength;
-        public short typeOfService;
-        public int totalLength;
-
-        public int identificationAndFlagsAndFragmentOffset;
-
-        public short TTL;
-        public TransportProtocol protocol;
-        public int headerChecksum;
-        public InetAddress sourceAddress;
-        public InetAddress destinationAddress;
-        public int optionsAndPadding;
-        private short protocolNum;
-
-        private IP4Header(ByteBuffer buffer) throws UnknownHostException {
-            byte versionAndIHL = buffer.get();
-            this.version = (byte) (versionAndIHL >> 4);
-            this.IHL = (byte) (versionAndIHL & 0x0F);
-            this.headerLength = this.IHL << 2;
+    public class IP4Header {
+        private IP4Header() {
+        }
 
-            this.typeOfService = BitUtils.getUnsignedByte(buffer.get());
-            this.totalLength = BitUtils.getUnsignedShort(buffer.getShort());
+        public byte getVersion() {
+            return (byte) ((backingBuffer.get(0) & 0xFF) >> 4);
+        }
 
-            this.identificationAndFlagsAndFragmentOffset = buffer.getInt();
+        public int getHeaderLength() {
+            return ip4HeaderLength;
+        }
 
-            this.TTL = BitUtils.getUnsignedByte(buffer.get());
-            this.protocolNum = BitUtils.getUnsignedByte(buffer.get());
-            this.protocol = TransportProtocol.numberToEnum(protocolNum);
-            this.headerChecksum = BitUtils.getUnsignedShort(buffer.getShort());
+        public short getTypeOfService() {
+            return BitUtils.getUnsignedByte(backingBuffer.get(1));
+        }
 
-            byte[] addressBytes = new byte[4];
-            buffer.get(addressBytes, 0, 4);
-            this.sourceAddress = InetAddress.getByAddress(addressBytes);
+        public int getTotalLength() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(2));
+        }
 
-            buffer.get(addressBytes, 0, 4);
-            this.destinationAddress = InetAddress.getByAddress(addressBytes);
+        public int getIdentificationAndFlagsAndFragmentOffset() {
+            return backingBuffer.getInt(4);
+        }
 
-            //this.optionsAndPadding = buffer.getInt();
+        public short getTTL() {
+            return BitUtils.getUnsignedByte(backingBuffer.get(8));
         }
 
-        public void fillHeader(ByteBuffer buffer) {
-            buffer.put((byte) (this.version << 4 | this.IHL));
-            buffer.put((byte) this.typeOfService);
-            buffer.putShort((short) this.totalLength);
+        public TransportProtocol getProtocol() {
+            return TransportProtocol.numberToEnum(BitUtils.getUnsignedByte(backingBuffer.get(9)));
+        }
 
-            buffer.putInt(this.identificationAndFlagsAndFragmentOffset);
+        public int getHeaderChecksum() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(10));
+        }
 
-            buffer.put((byte) this.TTL);
-            buffer.put((byte) this.protocol.getNumber());
-            buffer.putShort((short) this.headerChecksum);
+        public int getSourceAddress() {
+            return backingBuffer.getInt(12);
+        }
 
-            buffer.put(this.sourceAddress.getAddress());
-            buffer.put(this.destinationAddress.getAddress());
+        public int getDestinationAddress() {
+            return backingBuffer.getInt(16);
         }
 
         @Override
         public String toString() {
-            return "IP4Header{" + "version=" + version + ", IHL=" + IHL + ", typeOfService=" + typeOfService + ", totalLength=" + totalLength + ", identificationAndFlagsAndFragmentOffset=" + identificationAndFlagsAndFragmentOffset + ", TTL=" + TTL + ", protocol=" + protocolNum + ":" + protocol + ", headerChecksum=" + headerChecksum + ", sourceAddress=" + sourceAddress.getHostAddress() + ", destinationAddress=" + destinationAddress.getHostAddress() + '}';
-        }
-
-        private enum TransportProtocol {
-            TCP(6),
-            UDP(17),
-            Other(0xFF);
-
-            private int protocolNumber;
-
-            TransportProtocol(int protocolNumber) {
-                this.protocolNumber = protocolNumber;
-            }
-
-            private static TransportProtocol numberToEnum(int protocolNumber) {
-                if (protocolNumber == 6)
-                    return TCP;
-                else if (protocolNumber == 17)
-                    return UDP;
-                else
-                    return Other;
-            }
-
-            public int getNumber() {
-                return this.protocolNumber;
-            }
+            return "IP4Header{" + "version=" + getVersion() + ", headerLength=" + getHeaderLength() + ", typeOfService=" + getTypeOfService() + ", totalLength=" + getTotalLength() + ", identificationAndFlagsAndFragmentOffset=" + getIdentificationAndFlagsAndFragmentOffset() + ", TTL=" + getTTL() + ", protocol=" + BitUtils.getUnsignedByte(backingBuffer.get(9)) + ":" + getProtocol() + ", headerChecksum=" + getHeaderChecksum() + ", sourceAddress=" + addressToString(getSourceAddress()) + ", destinationAddress=" + addressToString(getDestinationAddress()) + '}';
         }
     }
 
-    public static class TCPHeader {
+    public class TCPHeader {
         public static final int FIN = 0x01;
         public static final int SYN = 0x02;
         public static final int RST = 0x04;
@@ -292,93 +236,129 @@ public class Packet {
         public static final int ACK = 0x10;
         public static final int URG = 0x20;
 
-        public int sourcePort;
-        public int destinationPort;
+        public static final int OPTION_END = 0;
+        public static final int OPTION_NOP = 1;
+        public static final int OPTION_MSS = 2;
+        public static final int OPTION_WINDOW_SCALE = 3;
 
-        public long sequenceNumber;
-        public long acknowledgementNumber;
+        private TCPHeader() {
+        }
 
-        public byte dataOffsetAndReserved;
-        public int headerLength;
-        public byte flags;
-        public int window;
+        public int getSourcePort() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength));
+        }
 
-        public int checksum;
-        public int urgentPointer;
+        public int getDestinationPort() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength + 2));
+        }
 
-        public byte[] optionsAndPadding;
+        public long getSequenceNumber() {
+            return BitUtils.getUnsignedInt(backingBuffer.getInt(ip4HeaderLength + 4));
+        }
 
-        private TCPHeader(ByteBuffer buffer) {
-            this.sourcePort = BitUtils.getUnsignedShort(buffer.getShort());
-            this.destinationPort = BitUtils.getUnsignedShort(buffer.getShort());
+        public long getAcknowledgementNumber() {
+            return BitUtils.getUnsignedInt(backingBuffer.getInt(ip4HeaderLength + 8));
+        }
 
-            this.sequenceNumber = BitUtils.getUnsignedInt(buffer.getInt());
-            this.acknowledgementNumber = BitUtils.getUnsignedInt(buffer.getInt());
+        public int getHeaderLength() {
+            return (backingBuffer.get(ip4HeaderLength + 12) & 0xF0) >> 2;
+        }
 
-            this.dataOffsetAndReserved = buffer.get();
-            this.headerLength = (this.dataOffsetAndReserved & 0xF0) >> 2;
-            this.flags = buffer.get();
-            this.window = BitUtils.getUnsignedShort(buffer.getShort());
+        public byte getFlags() {
+            return backingBuffer.get(ip4HeaderLength + 13);
+        }
 
-            this.checksum = BitUtils.getUnsignedShort(buffer.getShort());
-            this.urgentPointer = BitUtils.getUnsignedShort(buffer.getShort());
+        public int getWindow() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength + 14));
+        }
 
-            int optionsLength = this.headerLength - TCP_HEADER_SIZE;
-            if (optionsLength > 0) {
-                optionsAndPadding = new byte[optionsLength];
-                buffer.get(optionsAndPadding, 0, optionsLength);
-            }
+        public int getChecksum() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength + 16));
+        }
+
+        public int getUrgentPointer() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength + 18));
         }
 
         public boolean isFIN() {
-            return (flags & FIN) == FIN;
+            return (getFlags() & FIN) == FIN;
         }
 
         public boolean isSYN() {
-            return (flags & SYN) == SYN;
+            return (getFlags() & SYN) == SYN;
         }
 
         public boolean isRST() {
-            return (flags & RST) == RST;
+            return (getFlags() & RST) == RST;
         }
 
         public boolean isPSH() {
-            return (flags & PSH) == PSH;
+            return (getFlags() & PSH) == PSH;
         }
 
         public boolean isACK() {
-            return (flags & ACK) == ACK;
+            return (getFlags() & ACK) == ACK;
         }
 
         public boolean isURG() {
-            return (flags & URG) == URG;
+            return (getFlags() & URG) == URG;
         }
 
-        private void fillHeader(ByteBuffer buffer) {
-            buffer.putShort((short) sourcePort);
-            buffer.putShort((short) destinationPort);
-
-            buffer.putInt((int) sequenceNumber);
-            buffer.putInt((int) acknowledgementNumber);
+        /**
+         * @return the MSS option, or 0 if the segment doesn't carry one
+         */
+        public int getMaxSegmentSize() {
+            int offset = findOption(OPTION_MSS, 4);
+            return offset < 0 ? 0 : BitUtils.getUnsignedShort(backingBuffer.getShort(offset + 2));
+        }
 
-            buffer.put(dataOffsetAndReserved);
-            buffer.put(flags);
-            buffer.putShort((short) window);
+        /**
+         * @return the window scale shift, or -1 if the segment doesn't carry the option
+         */
+        public int getWindowScale() {
+            int offset = findOption(OPTION_WINDOW_SCALE, 3);
+            // RFC 7323 caps the shift at 14
+            return offset < 0 ? -1 : Math.min(backingBuffer.get(offset + 2) & 0xFF, 14);
+        }
 
-            buffer.putShort((short) checksum);
-            buffer.putShort((short) urgentPointer);
+        /**
+         * Walks the options in place.
+         *
+         * @return the offset of the option in the backing buffer, or -1 if absent or malformed
+         */
+        private int findOption(int kind, int length) {
+            int offset = ip4HeaderLength + TCP_HEADER_SIZE;
+            int end = Math.min(ip4HeaderLength + getHeaderLength(), backingBuffer.limit());
+            while (offset < end) {
+                int optionKind = backingBuffer.get(offset) & 0xFF;
+                if (optionKind == OPTION_END)
+                    break;
+                if (optionKind == OPTION_NOP) {
+                    offset++;
+                    continue;
+                }
+                if (offset + 1 >= end)
+                    break;
+                int optionLength = backingBuffer.get(offset + 1) & 0xFF;
+                if (optionLength < 2 || offset + optionLength > end)
+                    break;
+                if (optionKind == kind)
+                    return optionLength == length ? offset : -1;
+                offset += optionLength;
+            }
+            return -1;
         }
 
         @Override
         public String toString() {
             final StringBuilder sb = new StringBuilder("TCPHeader{");
-            sb.append("sourcePort=").append(sourcePort);
-            sb.append(", destinationPort=").append(destinationPort);
-            sb.append(", sequenceNumber=").append(sequenceNumber);
-            sb.append(", acknowledgementNumber=").append(acknowledgementNumber);
-            sb.append(", headerLength=").append(headerLength);
-            sb.append(", window=").append(window);
-            sb.append(", checksum=").append(checksum);
+            sb.append("sourcePort=").append(getSourcePort());
+            sb.append(", destinationPort=").append(getDestinationPort());
+            sb.append(", sequenceNumber=").append(getSequenceNumber());
+            sb.append(", acknowledgementNumber=").append(getAcknowledgementNumber());
+            sb.append(", headerLength=").append(getHeaderLength());
+            sb.append(", window=").append(getWindow());
+            sb.append(", checksum=").append(getChecksum());
             sb.append(", flags=");
             if (isFIN()) sb.append(" FIN");
             if (isSYN()) sb.append(" SYN");
@@ -391,35 +371,31 @@ public class Packet {
         }
     }
 
-    @SuppressWarnings("StringBufferReplaceableByString")
-    public static class UDPHeader {
-        public int sourcePort;
-        public int destinationPort;
-
-        public int length;
-        public int checksum;
+    public class UDPHeader {
+        private UDPHeader() {
+        }
 
-        private UDPHeader(ByteBuffer buffer) {
-            this.sourcePort = BitUtils.getUnsignedShort(buffer.getShort());
-            this.destinationPort = BitUtils.getUnsignedShort(buffer.getShort());
+        public int getSourcePort() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength));
+        }
 
-            this.length = BitUtils.getUnsignedShort(buffer.getShort());
-            this.checksum = BitUtils.getUnsignedShort(buffer.getShort());
+        public int getDestinationPort() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength + 2));
         }
 
-        private void fillHeader(ByteBuffer buffer) {
-            buffer.putShort((short) this.sourcePort);
-            buffer.putShort((short) this.destinationPort);
+        public int getLength() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength + 4));
+        }
 
-            buffer.putShort((short) this.length);
-            buffer.putShort((short) this.checksum);
+        public int getChecksum() {
+            return BitUtils.getUnsignedShort(backingBuffer.getShort(ip4HeaderLength + 6));
         }
 
         @SuppressWarnings("StringBufferReplaceableByString")
         @Override
         public String toString() {
             //noinspection StringBufferReplaceableByString,StringBufferReplaceableByString,StringBufferReplaceableByString
-            return "UDPHeader{" + "sourcePort=" + sourcePort + ", destinationPort=" + destinationPort + ", length=" + length + ", checksum=" + checksum + '}';
+            return "UDPHeader{" + "sourcePort=" + getSourcePort() + ", destinationPort=" + getDestinationPort() + ", length=" + getLength() + ", checksum=" + getChecksum() + '}';
         }
     }
 
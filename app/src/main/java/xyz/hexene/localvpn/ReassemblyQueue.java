@@ -0,0 +1,94 @@
+package xyz.hexene.localvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Device segments that arrived ahead of the next expected sequence number.
+ *
+ * Holds the pool buffers the segments came in, positioned at their payload, sorted by
+ * sequence number in two parallel arrays, so queueing a segment doesn't allocate. Overlaps are
+ * trimmed when a segment is handed out rather than when it is queued. Guarded by the TCB lock.
+ */
+class ReassemblyQueue {
+    // Enough for a whole receive window of Ethernet-sized segments, the device may send
+    // segments well below our MSS when the MTU is large
+    private static final int MAX_SEGMENTS = TCPHeaderTemplate.RECEIVE_WINDOW / Math.min(TCPHeaderTemplate.MSS, 1460) + 1;
+
+    private final long[] sequenceNums = new long[MAX_SEGMENTS];
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_SEGMENTS];
+    private int count;
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return false if the segment was not queued because it is full or already held,
+     * in which case the caller still owns the buffer
+     */
+    public boolean offer(long sequenceNum, ByteBuffer buffer) {
+        if (count == MAX_SEGMENTS)
+            return false;
+
+        long end = sequenceNum + buffer.remaining();
+        int index = count;
+        for (int i = 0; i < count; i++) {
+            long queuedEnd = sequenceNums[i] + buffers[i].remaining();
+            if (!TCB.sequenceAfter(sequenceNums[i], sequenceNum) && !TCB.sequenceAfter(end, queuedEnd))
+                return false; // Retransmission of something we already hold
+            if (TCB.sequenceAfter(sequenceNums[i], sequenceNum)) {
+                index = i;
+                break;
+            }
+        }
+
+        System.arraycopy(sequenceNums, index, sequenceNums, index + 1, count - index);
+        System.arraycopy(buffers, index, buffers, index + 1, count - index);
+        sequenceNums[index] = sequenceNum;
+        buffers[index] = buffer;
+        count++;
+        ByteBufferPool.setOwner(buffer, "reassemblyQueue");
+        return true;
+    }
+
+    /**
+     * Hands out the queued segment that continues the stream at nextSequenceNum, trimmed so it
+     * starts exactly there. Segments that turn out to be wholly duplicate are released.
+     *
+     * @return the caller owns the buffer, or null if the next segment is still missing
+     */
+    public ByteBuffer poll(long nextSequenceNum) {
+        while (count > 0 && !TCB.sequenceAfter(sequenceNums[0], nextSequenceNum)) {
+            long sequenceNum = sequenceNums[0];
+            ByteBuffer buffer = buffers[0];
+            removeFirst();
+
+            long end = sequenceNum + buffer.remaining();
+            if (!TCB.sequenceAfter(end, nextSequenceNum)) {
+                ByteBufferPool.release(buffer);
+                continue;
+            }
+            buffer.position(buffer.position() + (int) (nextSequenceNum - sequenceNum));
+            return buffer;
+        }
+        return null;
+    }
+
+    /**
+     * Returns every held buffer to the pool.
+     */
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            ByteBufferPool.release(buffers[i]);
+            buffers[i] = null;
+        }
+        count = 0;
+    }
+
+    private void removeFirst() {
+        count--;
+        System.arraycopy(sequenceNums, 1, sequenceNums, 0, count);
+        System.arraycopy(buffers, 1, buffers, 0, count);
+        buffers[count] = null;
+    }
+}
@@ -0,0 +1,128 @@
+package xyz.hexene.localvpn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Data segments sent to the device and not yet acknowledged, with the RTO for resending them.
+ *
+ * Holds a private copy of each segment in a pool buffer, header included, so a resend only
+ * needs a copy and a fresh header. The RTO follows RFC 6298: one segment per round trip is
+ * timed, and never one that was resent (Karn's rule). Guarded by the TCB lock.
+ */
+class RetransmissionQueue {
+    private static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+    // The device is local, so RFC 6298's one second minimum would only slow recovery down
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(60);
+    private static final int SEQUENCE_OFFSET = Packet.IP4_HEADER_SIZE + 4;
+    private static final int FLAGS_OFFSET = Packet.IP4_HEADER_SIZE + 13;
+
+    private final ArrayDeque<ByteBuffer> segments = new ArrayDeque<>();
+
+    private long smoothedRtt;
+    private long rttVariance;
+    private long rto = INITIAL_RTO;
+    // 0 while nothing is in flight
+    private long deadline;
+
+    private boolean timing;
+    private long timedSequenceEnd;
+    private long timedSince;
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * @param segment a complete segment, flipped; the queue owns it from now on
+     */
+    public void add(ByteBuffer segment, long now) {
+        segments.add(segment);
+        ByteBufferPool.setOwner(segment, "retransmissionQueue");
+        if (!timing) {
+            timing = true;
+            timedSequenceEnd = sequenceEnd(segment);
+            timedSince = now;
+        }
+        if (deadline == 0)
+            deadline = now + rto;
+    }
+
+    /**
+     * Releases every segment the device has acknowledged and restarts the timer if any were.
+     */
+    public void acknowledge(long ackNum, long now) {
+        boolean acknowledged = false;
+        ByteBuffer segment;
+        while ((segment = segments.peek()) != null && !TCB.sequenceAfter(sequenceEnd(segment), ackNum)) {
+            ByteBufferPool.release(segments.poll());
+            acknowledged = true;
+        }
+        if (!acknowledged)
+            return;
+
+        if (timing && !TCB.sequenceAfter(timedSequenceEnd, ackNum)) {
+            timing = false;
+            sample(now - timedSince);
+        }
+        deadline = segments.isEmpty() ? 0 : now + rto;
+    }
+
+    /**
+     * @return true if the oldest segment is overdue; the timer is then backed off
+     */
+    public boolean timedOut(long now) {
+        if (deadline == 0 || now - deadline < 0)
+            return false;
+        rto = Math.min(rto << 1, MAX_RTO);
+        deadline = now + rto;
+        return true;
+    }
+
+    /**
+     * Builds a copy of the oldest segment with the current acknowledgement number.
+     *
+     * @return a pool buffer for the output queue, or null if nothing is in flight
+     */
+    public ByteBuffer retransmit(TCPHeaderTemplate headerTemplate, long ackNum) {
+        ByteBuffer segment = segments.peek();
+        if (segment == null)
+            return null;
+        // Its ACK would not tell how long this copy took
+        timing = false;
+
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        buffer.put(segment.duplicate());
+        int payloadSize = segment.limit() - TCPHeaderTemplate.SIZE;
+        long sequenceNum = segment.getInt(SEQUENCE_OFFSET) & 0xFFFFFFFFL;
+        headerTemplate.updateTCPBuffer(buffer, segment.get(FLAGS_OFFSET), sequenceNum, ackNum, payloadSize);
+        buffer.position(TCPHeaderTemplate.SIZE + payloadSize);
+        return buffer;
+    }
+
+    public void clear() {
+        ByteBuffer segment;
+        while ((segment = segments.poll()) != null)
+            ByteBufferPool.release(segment);
+        deadline = 0;
+        timing = false;
+    }
+
+    private void sample(long rtt) {
+        if (smoothedRtt == 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(smoothedRtt + 4 * rttVariance, MAX_RTO));
+    }
+
+    private static long sequenceEnd(ByteBuffer segment) {
+        long sequenceNum = segment.getInt(SEQUENCE_OFFSET) & 0xFFFFFFFFL;
+        return sequenceNum + segment.limit() - TCPHeaderTemplate.SIZE;
+    }
+}
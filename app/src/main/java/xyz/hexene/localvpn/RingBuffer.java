@@ -0,0 +1,282 @@
+package xyz.hexene.localvpn;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue between two pipeline stages, preallocated so an offer doesn't allocate.
+ *
+ * One consumer thread; one producer, or several when built with multiProducer, which then
+ * claim slots with a CAS on the tail. A slot holds null until its element is written, so the
+ * consumer never sees a claimed but unwritten slot as data. When the ring is full, offer()
+ * either waits for space (BLOCK) or returns false at once (DROP); with DROP the caller still
+ * owns the element. The wait strategy is used by both a blocked producer and take().
+ *
+ * Whatever goes through iterator(), as contains(), remove(Object) and toArray() do, is
+ * consumer only as well.
+ */
+class RingBuffer<E> extends AbstractQueue<E> {
+    enum Overflow {BLOCK, DROP}
+
+    enum Wait {SPIN, YIELD, PARK}
+
+    // Producers waiting for space aren't signalled, they look again after this
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final boolean multiProducer;
+    private final Overflow overflow;
+    private final Wait wait;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // Set while the consumer is parked in take() or poll(timeout)
+    private volatile Thread parkedConsumer;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    // Racy maximum, only for statistics
+    private volatile int highWatermark;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RingBuffer(int capacity, boolean multiProducer, Overflow overflow, Wait wait) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.multiProducer = multiProducer;
+        this.overflow = overflow;
+        this.wait = wait;
+    }
+
+    /**
+     * Queues the element, waiting for space first if the ring is full and the policy is BLOCK.
+     *
+     * @return false if the element was shed, or the producer was interrupted while waiting
+     */
+    @Override
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        if (tryOffer(e))
+            return true;
+        if (overflow == Overflow.DROP) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        blocked.incrementAndGet();
+        while (!tryOffer(e)) {
+            if (Thread.currentThread().isInterrupted())
+                return false;
+            idle(PRODUCER_PARK_NANOS);
+        }
+        return true;
+    }
+
+    private boolean tryOffer(E e) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() > mask)
+                return false;
+        } while (multiProducer ? !tail.compareAndSet(t, t + 1) : !setTail(t + 1));
+
+        // A volatile write, so it can't be reordered with the read of parkedConsumer
+        slots.set((int) t & mask, e);
+        int occupancy = (int) (t + 1 - head.get());
+        if (occupancy > highWatermark)
+            highWatermark = occupancy;
+
+        Thread consumer = parkedConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        return true;
+    }
+
+    private boolean setTail(long t) {
+        tail.lazySet(t);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     */
+    @Override
+    public E poll() {
+        long h = head.get();
+        int index = (int) h & mask;
+        E e = slots.get(index);
+        if (e == null)
+            return null;
+        slots.lazySet(index, null);
+        // Ordered after the slot is cleared, so a producer that sees the space sees it empty
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * Consumer only. Waits for an element according to the wait strategy.
+     */
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (wait == Wait.PARK) {
+                parkedConsumer = Thread.currentThread();
+                // An offer between the poll above and setting the field would not unpark us
+                if ((e = poll()) == null)
+                    LockSupport.park(this);
+                parkedConsumer = null;
+                if (e != null)
+                    return e;
+            } else {
+                idle(0);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Consumer only. Like take(), but gives up after timeoutNanos.
+     *
+     * @return null if nothing arrived in time
+     */
+    public E poll(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        E e;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            if (wait == Wait.PARK) {
+                parkedConsumer = Thread.currentThread();
+                if ((e = poll()) == null)
+                    LockSupport.parkNanos(this, remaining);
+                parkedConsumer = null;
+                if (e != null)
+                    return e;
+            } else {
+                idle(0);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Consumer only.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public E peek() {
+        return slots.get((int) head.get() & mask);
+    }
+
+    @Override
+    public int size() {
+        // Read head first, tail can only have moved on since
+        long h = head.get();
+        return (int) Math.min(tail.get() - h, mask + 1);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of offers that had to wait for space
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    /**
+     * Consumer only. Weakly consistent: it stops at the first slot a producer has claimed but
+     * not written yet, and doesn't see what is offered after that.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        private long next = head.get();
+        private long last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next - tail.get() < 0 && slots.get((int) next & mask) != null;
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            last = next++;
+            return slots.get((int) last & mask);
+        }
+
+        /**
+         * Moves the elements ahead of the removed one back a slot and frees the head slot,
+         * so producers still only ever write at the tail.
+         */
+        @Override
+        public void remove() {
+            if (last < 0)
+                throw new IllegalStateException();
+            long h = head.get();
+            for (long i = last; i - h > 0; i--)
+                slots.set((int) i & mask, slots.get((int) (i - 1) & mask));
+            slots.lazySet((int) h & mask, null);
+            head.lazySet(h + 1);
+            last = -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return size() + "/" + capacity() + " max = " + highWatermark
+                + " dropped = " + dropped.get() + " blocked = " + blocked.get();
+    }
+
+    private void idle(long parkNanos) {
+        switch (wait) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(this, parkNanos);
+                break;
+        }
+    }
+}
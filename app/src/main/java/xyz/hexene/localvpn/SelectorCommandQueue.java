@@ -0,0 +1,81 @@
+package xyz.hexene.localvpn;
+
+import com.socks.library.KLog;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands registrations and interest changes for one selector to the thread that selects on it.
+ *
+ * Other threads only record the interest a TCB wants and queue the TCB, once until the owner
+ * gets to it. The owner applies the queue before each select(), so register() never waits on
+ * the selector's lock and interestOps() is only called from one thread. At most one wakeup()
+ * is issued per batch: the flag is cleared only when the owner starts draining.
+ */
+class SelectorCommandQueue {
+    private static final String TAG = SelectorCommandQueue.class.getSimpleName();
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<TCB> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile Thread owner;
+
+    public SelectorCommandQueue(Selector selector) {
+        this.selector = selector;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Brings the TCB's key in line with tcb.interestOps, registering the channel if needed.
+     * Must be called with the TCB lock held.
+     */
+    public void updateInterest(TCB tcb) {
+        if (Thread.currentThread() == owner) {
+            apply(tcb);
+            return;
+        }
+        if (tcb.interestQueued)
+            return;
+        tcb.interestQueued = true;
+        pending.offer(tcb);
+        if (wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    /**
+     * Called by the selecting thread before every select().
+     */
+    public void apply() {
+        owner = Thread.currentThread();
+        // Anything queued from here on needs a new wakeup
+        wakeupPending.set(false);
+        TCB tcb;
+        while ((tcb = pending.poll()) != null) {
+            synchronized (tcb) {
+                tcb.interestQueued = false;
+                apply(tcb);
+            }
+        }
+    }
+
+    private void apply(TCB tcb) {
+        if (!tcb.channel.isOpen())
+            return;
+        SelectionKey key = tcb.selectionKey;
+        try {
+            if (key == null)
+                tcb.selectionKey = tcb.channel.register(selector, tcb.interestOps, tcb);
+            else if (key.isValid())
+                key.interestOps(tcb.interestOps);
+        } catch (ClosedChannelException e) {
+            KLog.w(TAG, tcb.ipAndPort + " register after close");
+        }
+    }
+}
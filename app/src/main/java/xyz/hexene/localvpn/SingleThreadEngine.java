@@ -0,0 +1,186 @@
+package xyz.hexene.localvpn;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.socks.library.KLog;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole TCP path on one thread: reads the TUN device, handles each packet to
+ * completion in TCPOutput, services the sockets through TCPInput and writes the replies back.
+ *
+ * Replaces VPNRunnable, VPNOutput and the TCPInput/TCPOutput threads, and the queues between
+ * them, with one loop and a local deque. The TUN descriptor must be non-blocking and can't be
+ * registered with the selector, so an idle loop waits in select() while a TunWatcher polls
+ * the descriptor and wakes it; select() only times out for a delayed ACK or a retransmission
+ * check, so an idle VPN sleeps. Before Lollipop there is no poll(), or if it fails, and the
+ * wait only grows a timeout instead.
+ * Flow locks are still taken but never contended by another packet thread. UDP is dropped,
+ * as the threaded pipeline currently does.
+ */
+class SingleThreadEngine implements Runnable {
+    private static final String TAG = SingleThreadEngine.class.getSimpleName();
+    // TUN reads per iteration, so a busy device can't starve the sockets
+    private static final int MAX_BATCH = 64;
+    // Idle iterations that only poll before select() starts to wait
+    private static final int MAX_SPINS = 100;
+
+    private FileDescriptor vpnFileDescriptor;
+    private Selector selector;
+    private long maxParkMillis;
+    private final Packet packet = new Packet();
+    private final IoStats readStats = new IoStats(TAG, "TUN reads");
+    private final IoStats writeStats = new IoStats(TAG, "TUN writes");
+
+    private final SelectorCommandQueue selectorCommands;
+    private final ArrayDeque<ByteBuffer> networkToDeviceQueue = new ArrayDeque<>();
+    private final TCPInput tcpInput;
+    private final TCPOutput tcpOutput;
+    private final TunWatcher tunWatcher;
+
+    public SingleThreadEngine(FileDescriptor vpnFileDescriptor, Selector selector, long maxParkMillis,
+                              LinkedBlockingQueue<byte[]> APIqueue, LocalVPNService vpnService) {
+        this.vpnFileDescriptor = vpnFileDescriptor;
+        this.selector = selector;
+        this.maxParkMillis = maxParkMillis;
+        this.selectorCommands = new SelectorCommandQueue(selector);
+        this.tcpInput = new TCPInput(networkToDeviceQueue, APIqueue, selectorCommands);
+        // Packets are handed to TCPOutput directly, it never runs its own loop here
+        this.tcpOutput = new TCPOutput(null, networkToDeviceQueue, APIqueue, selectorCommands, vpnService);
+        this.tunWatcher = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? new TunWatcher(vpnFileDescriptor, selector) : null;
+    }
+
+    @Override
+    public void run() {
+        KLog.i(TAG, "Started");
+
+        FileChannel vpnInput = new FileInputStream(vpnFileDescriptor).getChannel();
+        FileChannel vpnOutput = new FileOutputStream(vpnFileDescriptor).getChannel();
+        ByteBuffer bufferToNetwork = ByteBufferPool.acquire();
+        Thread tunWatcherThread = null;
+        if (tunWatcher != null) {
+            tunWatcherThread = new Thread(tunWatcher, TunWatcher.class.getSimpleName());
+            tunWatcherThread.start();
+        }
+        try {
+            int idle = 0;
+            while (!Thread.interrupted()) {
+                boolean worked = false;
+
+                for (int i = 0; i < MAX_BATCH; i++) {
+                    int readBytes = vpnInput.read(bufferToNetwork);
+                    if (readBytes == 0)
+                        break;
+                    if (readBytes < 0) {
+                        KLog.w(TAG, "End of stream");
+                        return;
+                    }
+                    worked = true;
+                    readStats.record(readBytes);
+                    bufferToNetwork.flip();
+                    packet.wrap(bufferToNetwork);
+                    if (packet.isTCP()) {
+                        // processPacket() owns it from here, it releases or keeps it
+                        ByteBuffer packetBuffer = bufferToNetwork;
+                        bufferToNetwork = ByteBufferPool.acquire();
+                        tcpOutput.processPacket(packetBuffer);
+                    } else {
+                        bufferToNetwork.clear();
+                    }
+                }
+
+                tcpOutput.flushGatheredWrites();
+                selectorCommands.apply();
+                if (selector.selectNow() > 0)
+                    worked = true;
+                tcpInput.processSelected();
+                tcpOutput.sendDelayedAcks();
+
+                ByteBuffer bufferFromNetwork;
+                while ((bufferFromNetwork = networkToDeviceQueue.poll()) != null) {
+                    worked = true;
+                    write(vpnOutput, bufferFromNetwork);
+                }
+
+                if (worked) {
+                    if (idle > MAX_SPINS && tunWatcher != null)
+                        tunWatcher.disarm();
+                    idle = 0;
+                } else if (++idle > MAX_SPINS) {
+                    long timeoutMillis = timeoutMillis();
+                    if (tunWatcher != null && !tunWatcher.hasFailed()) {
+                        // A packet or a socket event ends the wait, the timeout only runs
+                        // delayed ACKs and retransmissions; without either it waits for good
+                        tunWatcher.arm();
+                        if (timeoutMillis < 0)
+                            selector.select();
+                        else
+                            selector.select(timeoutMillis);
+                    } else {
+                        // 1, 2, 4... ms up to maxParkMillis; a socket event ends the wait early
+                        long parkMillis = Math.min(1L << Math.min(idle - MAX_SPINS - 1, 16), maxParkMillis);
+                        selector.select(timeoutMillis < 0 ? parkMillis : Math.min(parkMillis, timeoutMillis));
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            KLog.i(TAG, "Stopping");
+        } catch (IOException e) {
+            // Only the TUN device or the selector, processPacket() resets a flow that fails.
+            // Also an interrupt while reading, which closes the channel.
+            KLog.i(TAG, "Stopping " + e.toString());
+        } catch (Exception e) {
+            Log.e(TAG, e.toString(), e);
+        } finally {
+            if (tunWatcherThread != null)
+                tunWatcherThread.interrupt();
+            ByteBufferPool.release(bufferToNetwork);
+            tcpInput.releaseBuffers();
+            LocalVPNService.closeResources(vpnInput, vpnOutput);
+            readStats.log();
+            writeStats.log();
+            KLog.i("stopped run");
+        }
+    }
+
+    /**
+     * @return milliseconds until the earliest delayed ACK or retransmission check, at least 1
+     * as select(0) would wait for good; -1 if neither is pending
+     */
+    private long timeoutMillis() {
+        long now = System.nanoTime();
+        long ackNanos = tcpOutput.timeoutNanos(now);
+        long retransmitNanos = tcpInput.timeoutNanos(now);
+        long nanos = ackNanos < 0 || (retransmitNanos >= 0 && retransmitNanos < ackNanos) ? retransmitNanos : ackNanos;
+        if (nanos < 0)
+            return -1;
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1), 1);
+    }
+
+    private void write(FileChannel vpnOutput, ByteBuffer bufferFromNetwork) {
+        try {
+            // One write per packet, the TUN device doesn't accept more than that
+            bufferFromNetwork.flip();
+            while (bufferFromNetwork.hasRemaining()) {
+                writeStats.record(vpnOutput.write(bufferFromNetwork));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString(), e);
+        } finally {
+            ByteBufferPool.release(bufferFromNetwork);
+        }
+    }
+}
@@ -19,110 +19,339 @@ package xyz.hexene.localvpn;
 import com.socks.library.KLog;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Transmission Control Block
  */
-public class TCB {
+public class TCB implements TimerWheel.Task {
     private static final int MAX_CACHE_SIZE = 500; // XXX: Is this ideal?
     private static final long MAX_WAIT_ACK_TIME = 2 * 60 * 1000;//zhangjie add 2015.12.10
+    private static final long CONNECT_TIMEOUT = 10 * 1000;
+    // How long a closing flow may wait for the device's last ACK or FIN
+    private static final long LINGER_TIME = 10 * 1000;
+    // Delayed ACKs: at most every second in-order segment, or this long after the first
+    private static final int ACK_EVERY_SEGMENTS = 2;
+    private static final long ACK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(40);
+    // Most buffers handed to one gathering write
+    private static final int MAX_GATHER_SEGMENTS = 32;
+    public final long key;
+    // Only for logging, lookups go through key
     public String ipAndPort;
     public long mySequenceNum, theirSequenceNum;
     public long myAcknowledgementNum, theirAcknowledgementNum;
-    public TCBStatus status;
+    // Next in-order byte from the device. Ahead of myAcknowledgementNum by what is still
+    // waiting in pendingWrites, we only acknowledge what the server socket has taken.
+    public long receiveNextNum;
+    public volatile TCBStatus status;
     public long readDataTime;
     public long readlen;
+    // For the bandwidth estimate: when the connect went out, and the first and last read
+    public long connectNanos;
+    public long firstReadNanos, lastReadNanos;
     public int curNum;
-    public Packet referencePacket;
+    public TCPHeaderTemplate headerTemplate;
 
-    public httpPacket kancolleClient = new httpPacket();
-    public httpPacket kancolleServer = new httpPacket();
+    public FlowClass flowClass = FlowClass.UNCLASSIFIED;
+    // Game API parsers, only GAME_API flows get them
+    public httpPacket kancolleClient;
+    public httpPacket kancolleServer;
 
     public SocketChannel channel;
     public boolean waitingForNetworkData;
+    // Last window the device advertised, and whether OP_READ is off because it is full
+    public int deviceWindow;
+    public boolean readPaused;
     public SelectionKey selectionKey;
-    private long lastDataExTime;
-    private static LRUCache<String, TCB> tcbCache =
-            new LRUCache<>(MAX_CACHE_SIZE, new LRUCache.CleanupCallback<String, TCB>() {
-                @Override
-                public void cleanup(Map.Entry<String, TCB> eldest) {
-                    KLog.d(eldest.getValue().curNum + " cleanup = " + eldest.getKey() + " st = " + eldest.getValue().status + " readLen = " + eldest.getValue().readlen);
-                    eldest.getValue().closeChannel();
-                }
-
-                public boolean canCleanup(Map.Entry<String, TCB> eldest) {
-                    boolean ret = false;
-                    TCBStatus status = eldest.getValue().status;
-
-                    if (status == TCBStatus.CLOSE_WAIT || status == TCBStatus.LAST_ACK) {
-                        ret = true;
-                        KLog.d(eldest.getKey() + " canCleanup st = " + status);
-                    } else if (System.currentTimeMillis() - eldest.getValue().lastDataExTime > MAX_WAIT_ACK_TIME) {
-                        //zhangjie add 2015.12.10
-                        ret = true;
-                        KLog.d(eldest.getKey() + " canCleanup lastDataExTime > " + MAX_WAIT_ACK_TIME);
-                    }
-
-                    return ret;
-                }
-            });
-
-    public TCB(String ipAndPort, long mySequenceNum, long theirSequenceNum, long myAcknowledgementNum, long theirAcknowledgementNum,
-               SocketChannel channel, Packet referencePacket) {
+    // Interest this flow wants, applied to selectionKey by the selecting thread
+    public int interestOps;
+    public boolean interestQueued;
+    public SelectorCommandQueue selectorCommands;
+    public final ReassemblyQueue reassemblyQueue = new ReassemblyQueue();
+    public final RetransmissionQueue retransmissionQueue = new RetransmissionQueue();
+    // Same ACK seen again with nothing new, three in a row mean a segment was lost
+    public int duplicateAcks;
+    // Whether TCPInput is watching this flow's retransmission timer
+    public boolean retransmitScheduled;
+    // In-order segments from the device not acknowledged yet, and when the ACK is due (0: none)
+    public int unackedSegments;
+    public long ackDeadline;
+    // Whether TCPOutput is watching ackDeadline
+    public boolean delayedAckScheduled;
+    // Gathering only pays for flows known to be bulk, the socket starts with Nagle off
+    public WritePolicy writePolicy = WritePolicy.LATENCY;
+    // Whether TCPOutput will flush the writes this flow gathered
+    public boolean gatherScheduled;
+    // Device payload not written to the server yet: gathered for one write, or left over
+    // when the socket was full and drained on OP_WRITE
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    public int pendingWriteBytes;
+    // The device's FIN was taken, it is answered once pendingWrites reached the server
+    public boolean finReceived;
+    private ByteBuffer[] gatherBuffers;
+    private final long createTime;
+    private volatile long lastDataExTime;
+    private volatile boolean closed;
+    // Guarded by the TimerWheel
+    private long scheduledTick;
+    private static FlowTable<TCB> tcbCache = new FlowTable<>(MAX_CACHE_SIZE);
+
+    public TCB(long key, String ipAndPort, long mySequenceNum, long theirSequenceNum, long myAcknowledgementNum, long theirAcknowledgementNum,
+               SocketChannel channel, TCPHeaderTemplate headerTemplate) {
+        this.key = key;
         this.ipAndPort = ipAndPort;
 
         this.mySequenceNum = mySequenceNum;
         this.theirSequenceNum = theirSequenceNum;
         this.myAcknowledgementNum = myAcknowledgementNum;
+        this.receiveNextNum = myAcknowledgementNum;
         this.theirAcknowledgementNum = theirAcknowledgementNum;
 
         this.channel = channel;
-        this.referencePacket = referencePacket;
-        this.lastDataExTime = System.currentTimeMillis();
+        this.headerTemplate = headerTemplate;
+        this.createTime = TimerWheel.now();
+        this.lastDataExTime = createTime;
+    }
+
+    /**
+     * Compares sequence numbers modulo 2^32.
+     */
+    public static boolean sequenceAfter(long a, long b) {
+        return (int) (a - b) > 0;
+    }
+
+    /**
+     * @return how many more bytes the device will accept right now
+     */
+    public int sendWindow() {
+        long inFlight = (mySequenceNum - theirAcknowledgementNum) & 0xFFFFFFFFL;
+        return (int) Math.max(0, deviceWindow - inFlight);
+    }
+
+    /**
+     * Takes the acknowledgement and window from a device segment, ignoring stale ones.
+     */
+    public void updateSendWindow(long ackNum, int window) {
+        if (!sequenceAfter(theirAcknowledgementNum, ackNum)) {
+            if (sequenceAfter(ackNum, theirAcknowledgementNum)) {
+                duplicateAcks = 0;
+                retransmissionQueue.acknowledge(ackNum, System.nanoTime());
+            }
+            theirAcknowledgementNum = ackNum;
+            deviceWindow = window;
+        }
+    }
+
+    /**
+     * Decides about the ACK for the in-order segments counted in unackedSegments.
+     *
+     * @return true if the ACK can wait for another segment or ackDeadline, false if it is due now
+     */
+    public boolean delayAck(long now) {
+        if (unackedSegments >= ACK_EVERY_SEGMENTS)
+            return false;
+        if (ackDeadline == 0)
+            ackDeadline = now + ACK_DELAY_NANOS;
+        return true;
+    }
+
+    /**
+     * Called whenever a segment carrying the current myAcknowledgementNum goes to the device.
+     */
+    public void ackSent() {
+        unackedSegments = 0;
+        ackDeadline = 0;
+    }
+
+    /**
+     * Answers the device's FIN once nothing before it is left for the server: with FIN|ACK,
+     * closing this side too, or with only the ACK when our FIN went out already.
+     *
+     * @return the segment for the device, null if no answer is due
+     */
+    public ByteBuffer answerFin() {
+        if (!finReceived || pendingWriteBytes > 0 || myAcknowledgementNum == receiveNextNum)
+            return null;
+        myAcknowledgementNum = receiveNextNum;
+        ByteBuffer responseBuffer = ByteBufferPool.acquire();
+        if (status == TCBStatus.LAST_ACK) {
+            headerTemplate.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.ACK, mySequenceNum, myAcknowledgementNum, 0);
+        } else {
+            linger(TCBStatus.LAST_ACK);
+            headerTemplate.updateTCPBuffer(responseBuffer, (byte) (Packet.TCPHeader.FIN | Packet.TCPHeader.ACK),
+                    mySequenceNum, myAcknowledgementNum, 0);
+            mySequenceNum++; // FIN counts as a byte
+        }
+        ackSent();
+        return responseBuffer;
+    }
+
+    /**
+     * Stops reading from the server until the device acknowledges some of what is in flight.
+     */
+    public void pauseReading() {
+        readPaused = true;
+        setInterest(SelectionKey.OP_READ, false);
     }
 
-    public static TCB getTCB(String ipAndPort) {
-        synchronized (tcbCache) {
-            //KLog.d("key = " + ipAndPort);
-            return tcbCache.get(ipAndPort);
+    /**
+     * Turns one kind of readiness on or off without touching the others.
+     */
+    public void setInterest(int ops, boolean on) {
+        interestOps = on ? interestOps | ops : interestOps & ~ops;
+        selectorCommands.updateInterest(this);
+    }
+
+    public void setFlowClass(FlowClass flowClass) {
+        this.flowClass = flowClass;
+        if (flowClass == FlowClass.GAME_API && kancolleClient == null) {
+            kancolleClient = new httpPacket();
+            kancolleServer = new httpPacket();
         }
     }
 
-    public static void putTCB(String ipAndPort, TCB tcb) {
-        synchronized (tcbCache) {
-            tcb.curNum = tcbCache.size();
-            KLog.d(tcbCache.size() + " key = " + ipAndPort);
-            tcbCache.put(ipAndPort, tcb);
+    /**
+     * Switches between writing each segment as it comes with Nagle off, and gathering them.
+     */
+    public void setWritePolicy(WritePolicy writePolicy) throws IOException {
+        if (this.writePolicy == writePolicy)
+            return;
+        this.writePolicy = writePolicy;
+        channel.socket().setTcpNoDelay(writePolicy == WritePolicy.LATENCY);
+    }
+
+    /**
+     * Writes device payload to the server without blocking. In THROUGHPUT mode it is only
+     * queued, for flushWrites() to write with what follows it; the queue is flushed early
+     * once it holds MAX_GATHER_SEGMENTS. Whatever the socket doesn't take stays queued, and
+     * OP_WRITE is turned on.
+     *
+     * @return true if the buffer was queued, the caller must not touch it any more then
+     */
+    public boolean write(ByteBuffer data) throws IOException {
+        boolean flush = writePolicy == WritePolicy.LATENCY || pendingWrites.size() + 1 >= MAX_GATHER_SEGMENTS;
+        if (flush && pendingWrites.isEmpty()) {
+            channel.write(data);
+            if (!data.hasRemaining())
+                return false;
+            queue(data);
+            setInterest(SelectionKey.OP_WRITE, true);
+            return true;
         }
+
+        queue(data);
+        // While OP_WRITE is on, the socket is full and the selector drains the queue
+        if (flush && (interestOps & SelectionKey.OP_WRITE) == 0)
+            flushWrites();
+        return true;
+    }
+
+    private void queue(ByteBuffer data) {
+        pendingWrites.add(data);
+        ByteBufferPool.setOwner(data, "pendingWrites");
+        pendingWriteBytes += data.remaining();
+    }
+
+    /**
+     * @return true if writes are queued that nothing is waiting to drain, see write()
+     */
+    public boolean writesGathered() {
+        return !pendingWrites.isEmpty() && (interestOps & SelectionKey.OP_WRITE) == 0;
+    }
+
+    /**
+     * Writes queued payload, MAX_GATHER_SEGMENTS buffers per call, until the socket is full
+     * or the queue empty. OP_WRITE is on exactly while something is left.
+     *
+     * @return bytes written
+     */
+    public int flushWrites() throws IOException {
+        if (gatherBuffers == null)
+            gatherBuffers = new ByteBuffer[MAX_GATHER_SEGMENTS];
+        long written = 0;
+        boolean full = false;
+        while (!full && !pendingWrites.isEmpty()) {
+            int count = 0;
+            long gathered = 0;
+            for (ByteBuffer queued : pendingWrites) {
+                gatherBuffers[count++] = queued;
+                gathered += queued.remaining();
+                if (count == gatherBuffers.length)
+                    break;
+            }
+            long accepted;
+            try {
+                accepted = channel.write(gatherBuffers, 0, count);
+            } finally {
+                Arrays.fill(gatherBuffers, 0, count, null);
+            }
+            written += accepted;
+            full = accepted < gathered;
+            ByteBuffer data;
+            while ((data = pendingWrites.peek()) != null && !data.hasRemaining())
+                ByteBufferPool.release(pendingWrites.poll());
+        }
+        pendingWriteBytes -= written;
+
+        boolean waiting = (interestOps & SelectionKey.OP_WRITE) != 0;
+        if (waiting == pendingWrites.isEmpty())
+            setInterest(SelectionKey.OP_WRITE, !waiting);
+        return (int) written;
+    }
+
+    public static TCB getTCB(long key) {
+        return tcbCache.get(key);
+    }
+
+    public static void putTCB(TCB tcb) {
+        tcb.curNum = tcbCache.size();
+        KLog.d(tcb.curNum + " key = " + tcb.ipAndPort);
+        tcbCache.put(tcb.key, tcb);
+        TimerWheel.getInstance().schedule(tcb);
     }
 
     public static void closeTCB(TCB tcb) {
-        KLog.d(tcb.curNum + " key = " + tcb.ipAndPort + " st = " + tcb.status + " readLen = " + tcb.readlen);
-        tcb.closeChannel();
-        synchronized (tcbCache) {
-            tcbCache.remove(tcb.ipAndPort);
+        synchronized (tcb) {
+            KLog.d(tcb.curNum + " key = " + tcb.ipAndPort + " st = " + tcb.status + " readLen = " + tcb.readlen);
+            if (!tcb.closed) {
+                tcb.closed = true;
+                tcb.closeChannel();
+            }
         }
+        tcbCache.remove(tcb.key, tcb);
     }
 
+    /**
+     * Closes every flow of every reactor, only for when the service stops.
+     */
     public static void closeAll() {
         KLog.d("closeAll");
-        synchronized (tcbCache) {
-            int index = 0;
-            Iterator<Map.Entry<String, TCB>> it = tcbCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, TCB> item = it.next();
-                KLog.d("close " + ++index + ": " + item.getKey() + " st = " + item.getValue().status + " readLen = " + item.getValue().readlen);
-                item.getValue().closeChannel();
-                it.remove();
+        int index = 0;
+        for (TCB tcb : tcbCache.clear()) {
+            // A reactor that is still winding down may hold the flow, or close it itself
+            synchronized (tcb) {
+                if (tcb.closed)
+                    continue;
+                KLog.d("close " + ++index + ": " + tcb.ipAndPort + " st = " + tcb.status + " readLen = " + tcb.readlen);
+                tcb.closed = true;
+                tcb.closeChannel();
             }
         }
     }
 
-    private void closeChannel() {
+    private synchronized void closeChannel() {
+        BandwidthEstimator.recordTransfer(readlen, lastReadNanos - firstReadNanos);
+        reassemblyQueue.clear();
+        retransmissionQueue.clear();
+        ByteBuffer data;
+        while ((data = pendingWrites.poll()) != null)
+            ByteBufferPool.release(data);
+        pendingWriteBytes = 0;
         try {
             channel.close();
         } catch (IOException e) {
@@ -132,7 +361,72 @@ public class TCB {
 
     //zhangjie add 2015.12.11 for removeEldestEntry
     public void refreshDataEXTime() {
-        this.lastDataExTime = System.currentTimeMillis();
+        this.lastDataExTime = TimerWheel.now();
+    }
+
+    /**
+     * Moves to a closing state and restarts the clock, so the flow is reaped
+     * LINGER_TIME after this rather than after the idle timeout.
+     */
+    public void linger(TCBStatus status) {
+        this.status = status;
+        this.lastDataExTime = TimerWheel.now();
+        // Moves the flow's one entry to an earlier slot, never adds a second
+        TimerWheel.getInstance().schedule(this);
+    }
+
+    @Override
+    public long getDeadline() {
+        TCBStatus status = this.status;
+        if (status == TCBStatus.SYN_SENT)
+            return createTime + CONNECT_TIMEOUT;
+        if (status == TCBStatus.CLOSE_WAIT || status == TCBStatus.LAST_ACK)
+            return lastDataExTime + LINGER_TIME;
+        return lastDataExTime + MAX_WAIT_ACK_TIME;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return closed;
+    }
+
+    @Override
+    public long getScheduledTick() {
+        return scheduledTick;
+    }
+
+    @Override
+    public void setScheduledTick(long tick) {
+        scheduledTick = tick;
+    }
+
+    @Override
+    public void expire() {
+        synchronized (this) {
+            if (closed)
+                return;
+            KLog.d(curNum + " expire = " + ipAndPort + " st = " + status + " readLen = " + readlen);
+            closeTCB(this);
+        }
+    }
+
+    /**
+     * What a flow carries, see FlowClassifier. Only GAME_API payload is inspected.
+     */
+    public enum FlowClass {
+        UNCLASSIFIED,
+        GAME_API,
+        STATIC_ASSET,
+        OPAQUE,
+    }
+
+    /**
+     * LATENCY for game API requests, which are small and wait for their answer, and for flows
+     * nothing is known about; THROUGHPUT for static assets and the game server's other requests.
+     */
+    public enum WritePolicy {
+        LATENCY,
+        THROUGHPUT,
     }
 
     // TCP has more states, but we need only these
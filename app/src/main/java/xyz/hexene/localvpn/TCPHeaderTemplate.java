@@ -0,0 +1,156 @@
+package xyz.hexene.localvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Precomputed IP and TCP header for the device-bound direction of one connection.
+ *
+ * Only sequence and acknowledgement numbers, flags and length change between segments, so
+ * both checksums are prepared once and then updated for those fields. Building a segment costs
+ * a 40 byte copy, a few puts and the payload sum. Immutable, shared by TCPInput and TCPOutput.
+ */
+class TCPHeaderTemplate {
+    public static final int SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
+    // Largest segment the device may send us, it has to fit one pool buffer
+    public static final int MSS = ByteBufferPool.BUFFER_SIZE - SIZE;
+    // RFC 1122 default when the SYN carries no MSS option
+    private static final int DEFAULT_MSS = 536;
+    // What we let the device have in flight towards the network, a few segments at large MTUs
+    public static final int RECEIVE_WINDOW = Math.max(128 * 1024, 4 * MSS);
+    private static final int RECEIVE_WINDOW_SHIFT = 2;
+
+    /**
+     * Payload size of the segments sent to the device, the smaller of its MSS and ours.
+     */
+    public final int maxSegmentSize;
+    /**
+     * Shift for the windows in the device's segments, 0 unless both sides sent the option.
+     */
+    public final int deviceWindowShift;
+
+    private final byte[] header = new byte[SIZE];
+    // IP header checksum with the total length field set to SIZE
+    private final int ip4Checksum;
+    // Folded sum of the pseudo-header and the fixed TCP fields, for a segment without payload
+    private final int tcpPartialSum;
+    // Options for the SYN|ACK, a multiple of four bytes, and their folded sum
+    private final byte[] synAckOptions;
+    private final int synAckOptionsSum;
+    // Windows are never scaled in a SYN
+    private final int synAckWindow;
+    private final int window;
+
+    /**
+     * @param syn the device's SYN; source and destination are swapped for the template
+     */
+    public TCPHeaderTemplate(Packet syn) {
+        Packet.IP4Header ip4Header = syn.ip4Header;
+        Packet.TCPHeader tcpHeader = syn.tcpHeader;
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+
+        int deviceMss = tcpHeader.getMaxSegmentSize();
+        maxSegmentSize = Math.min(deviceMss > 0 ? deviceMss : DEFAULT_MSS, MSS);
+
+        // Scaling is on only if the SYN offered it, and then we must answer with our own shift
+        int deviceWindowScale = tcpHeader.getWindowScale();
+        ByteBuffer options = ByteBuffer.allocate(8);
+        options.put((byte) Packet.TCPHeader.OPTION_MSS).put((byte) 4).putShort((short) MSS);
+        if (deviceWindowScale >= 0) {
+            deviceWindowShift = deviceWindowScale;
+            window = RECEIVE_WINDOW >> RECEIVE_WINDOW_SHIFT;
+            options.put((byte) Packet.TCPHeader.OPTION_NOP);
+            options.put((byte) Packet.TCPHeader.OPTION_WINDOW_SCALE).put((byte) 3).put((byte) RECEIVE_WINDOW_SHIFT);
+        } else {
+            deviceWindowShift = 0;
+            window = Math.min(RECEIVE_WINDOW, 0xFFFF);
+        }
+        synAckOptions = new byte[options.position()];
+        options.flip();
+        options.get(synAckOptions);
+        synAckOptionsSum = Checksum.sum(ByteBuffer.wrap(synAckOptions), 0, synAckOptions.length);
+        synAckWindow = Math.min(RECEIVE_WINDOW, 0xFFFF);
+
+        buffer.put((byte) (4 << 4 | Packet.IP4_HEADER_SIZE >> 2));
+        buffer.put((byte) ip4Header.getTypeOfService());
+        buffer.putShort((short) SIZE);
+        buffer.putInt(ip4Header.getIdentificationAndFlagsAndFragmentOffset());
+        buffer.put((byte) ip4Header.getTTL());
+        buffer.put((byte) Packet.TransportProtocol.TCP.getNumber());
+        buffer.putShort((short) 0);
+        buffer.putInt(ip4Header.getDestinationAddress());
+        buffer.putInt(ip4Header.getSourceAddress());
+
+        buffer.putShort((short) tcpHeader.getDestinationPort());
+        buffer.putShort((short) tcpHeader.getSourcePort());
+        buffer.putInt(0); // Sequence number
+        buffer.putInt(0); // Acknowledgement number
+        buffer.put((byte) (Packet.TCP_HEADER_SIZE << 2));
+        buffer.put((byte) 0); // Flags
+        buffer.putShort((short) window);
+        buffer.putShort((short) 0); // Checksum
+        buffer.putShort((short) 0); // Urgent pointer
+
+        ip4Checksum = ~Checksum.sum(buffer, 0, Packet.IP4_HEADER_SIZE) & 0xFFFF;
+        buffer.putShort(10, (short) ip4Checksum);
+
+        int sourceAddress = buffer.getInt(12);
+        int destinationAddress = buffer.getInt(16);
+        long pseudoHeaderSum = (sourceAddress >>> 16) + (sourceAddress & 0xFFFF)
+                + (destinationAddress >>> 16) + (destinationAddress & 0xFFFF)
+                + Packet.TransportProtocol.TCP.getNumber() + Packet.TCP_HEADER_SIZE;
+        tcpPartialSum = Checksum.fold(pseudoHeaderSum + Checksum.sum(buffer, Packet.IP4_HEADER_SIZE, Packet.TCP_HEADER_SIZE));
+    }
+
+    /**
+     * Writes the header for a segment at the start of the buffer and leaves the position
+     * right after it. The payload, if any, must already be in place behind the header.
+     */
+    public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize) {
+        buffer.position(0);
+        buffer.put(header);
+
+        int seq = (int) sequenceNum;
+        int ack = (int) ackNum;
+        buffer.putInt(Packet.IP4_HEADER_SIZE + 4, seq);
+        buffer.putInt(Packet.IP4_HEADER_SIZE + 8, ack);
+        buffer.put(Packet.IP4_HEADER_SIZE + 13, flags);
+
+        int totalLength = SIZE + payloadSize;
+        buffer.putShort(2, (short) totalLength);
+        buffer.putShort(10, (short) Checksum.update(ip4Checksum, SIZE, totalLength));
+
+        // Fields were zero in the template, so their new values are simply added in
+        long sum = tcpPartialSum + (seq >>> 16) + (seq & 0xFFFF) + (ack >>> 16) + (ack & 0xFFFF)
+                + (flags & 0xFF) + payloadSize;
+        if (payloadSize > 0)
+            sum += Checksum.sum(buffer, SIZE, payloadSize);
+        buffer.putShort(Packet.IP4_HEADER_SIZE + 16, (short) ~Checksum.fold(sum));
+    }
+
+    /**
+     * Writes a SYN|ACK with our MSS, and our window scale if the device asked for scaling.
+     * Leaves the position after the options.
+     */
+    public void updateSYNACKBuffer(ByteBuffer buffer, long sequenceNum, long ackNum) {
+        byte flags = (byte) (Packet.TCPHeader.SYN | Packet.TCPHeader.ACK);
+        updateTCPBuffer(buffer, flags, sequenceNum, ackNum, 0);
+
+        int optionsSize = synAckOptions.length;
+        buffer.put(Packet.IP4_HEADER_SIZE + 12, (byte) ((Packet.TCP_HEADER_SIZE + optionsSize) << 2));
+        buffer.putShort(Packet.IP4_HEADER_SIZE + 14, (short) synAckWindow);
+        buffer.put(synAckOptions);
+
+        int totalLength = SIZE + optionsSize;
+        buffer.putShort(2, (short) totalLength);
+        buffer.putShort(10, (short) Checksum.update(ip4Checksum, SIZE, totalLength));
+
+        // On top of a plain segment: the longer data offset, the pseudo-header length,
+        // the options, and the unscaled window in place of the template's
+        int seq = (int) sequenceNum;
+        int ack = (int) ackNum;
+        long sum = tcpPartialSum + (seq >>> 16) + (seq & 0xFFFF) + (ack >>> 16) + (ack & 0xFFFF)
+                + (flags & 0xFF) + (optionsSize << 10) + optionsSize + synAckOptionsSum
+                + synAckWindow + (~window & 0xFFFF);
+        buffer.putShort(Packet.IP4_HEADER_SIZE + 16, (short) ~Checksum.fold(sum));
+    }
+}
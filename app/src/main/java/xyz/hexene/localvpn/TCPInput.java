@@ -22,30 +22,50 @@ import com.socks.library.KLog;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import xyz.hexene.localvpn.TCB.TCBStatus;
 
 class TCPInput implements Runnable {
     private static final String TAG = TCPInput.class.getSimpleName();
     private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
-
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
+    // Up to this much is read per readiness event, scattered straight into segment buffers
+    private static final int MAX_READ_SIZE = Math.max(64 * 1024, TCPHeaderTemplate.MSS);
+    private static final int MAX_READ_SEGMENTS = 64;
+    // Resolution of the retransmission timers, well under the minimum RTO
+    private static final long RETRANSMIT_CHECK_MILLIS = 50;
+    private static final long RETRANSMIT_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_CHECK_MILLIS);
+
+    private Queue<ByteBuffer> outputQueue;
     private LinkedBlockingQueue<byte[]> APIqueue;
     private Selector selector;
-
-    public TCPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, LinkedBlockingQueue<byte[]> APIqueue, Selector selector) {
+    private SelectorCommandQueue selectorCommands;
+    // Pool buffers the next read scatters into, refilled as reads take them for segments
+    private final ByteBuffer[] readBuffers = new ByteBuffer[MAX_READ_SEGMENTS];
+    private final IoStats readStats = new IoStats(TAG, "socket reads");
+    // Bytes read per selector wakeup that found ready keys
+    private final IoStats wakeupStats = new IoStats(TAG, "selector wakeups");
+    private int wakeupBytes;
+    // Flows with data in flight to the device, only touched by this thread
+    private final ArrayList<TCB> unacknowledged = new ArrayList<>();
+    private long nextRetransmitCheck;
+
+    public TCPInput(Queue<ByteBuffer> outputQueue, LinkedBlockingQueue<byte[]> APIqueue, SelectorCommandQueue selectorCommands) {
         this.outputQueue = outputQueue;
         this.APIqueue = APIqueue;
-        this.selector = selector;
+        this.selectorCommands = selectorCommands;
+        this.selector = selectorCommands.getSelector();
     }
 
     @Override
@@ -54,42 +74,76 @@ class TCPInput implements Runnable {
 
         try {
             while (!Thread.interrupted()) {
-                int readyChannels = selector.select();
-                if (readyChannels == 0) {
-                    Thread.sleep(10);
-                    continue;
-                }
-                //KLog.d(TAG, "readyChannels = " + readyChannels);
-
-                Set<SelectionKey> keys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = keys.iterator();
-
-                while (keyIterator.hasNext() && !Thread.interrupted()) {
-                    SelectionKey key = keyIterator.next();
-                    if (key.isValid()) {
-                        if (key.isConnectable())
-                            processConnect(key, keyIterator);
-                        else if (key.isReadable())
-                            processInput(key, keyIterator);
-                        else
-                            KLog.w(TAG, "unknow key type!!!");
-                    }
-                }
+                selectorCommands.apply();
+                if (unacknowledged.isEmpty())
+                    selector.select();
+                else
+                    selector.select(RETRANSMIT_CHECK_MILLIS);
+                processSelected();
             }
-        } catch (InterruptedException e) {
+        } catch (ClosedSelectorException e) {
+            // Closed by cleanup(), an interrupt just ends the loop
             KLog.w(TAG, "Stopping!!!");
         } catch (Exception e) {
             Log.e(TAG, e.toString(), e);
         } finally {
+            releaseBuffers();
+            readStats.log();
+            wakeupStats.log();
             KLog.i("stopped run");
         }
     }
 
+    /**
+     * Handles the keys the last select() found, and any retransmissions that are due.
+     * An empty selection only means commands or a retransmission tick woke the selector.
+     */
+    void processSelected() {
+        if (!unacknowledged.isEmpty())
+            checkRetransmissions();
+
+        Set<SelectionKey> keys = selector.selectedKeys();
+        if (keys.isEmpty())
+            return;
+        wakeupBytes = 0;
+        Iterator<SelectionKey> keyIterator = keys.iterator();
+        while (keyIterator.hasNext() && !Thread.currentThread().isInterrupted()) {
+            SelectionKey key = keyIterator.next();
+            if (key.isValid()) {
+                if (key.isConnectable()) {
+                    processConnect(key, keyIterator);
+                } else if (key.isReadable() || key.isWritable()) {
+                    if (key.isWritable())
+                        processWrite(key);
+                    if (key.isValid() && key.isReadable())
+                        processInput(key, keyIterator);
+                    else
+                        keyIterator.remove();
+                } else {
+                    KLog.w(TAG, "unknow key type!!!");
+                }
+            }
+        }
+        wakeupStats.record(wakeupBytes);
+    }
+
+    /**
+     * Returns the buffers kept for the next read to the pool.
+     */
+    void releaseBuffers() {
+        for (int i = 0; i < readBuffers.length; i++) {
+            if (readBuffers[i] != null) {
+                ByteBufferPool.release(readBuffers[i]);
+                readBuffers[i] = null;
+            }
+        }
+    }
+
     private void processConnect(SelectionKey key, Iterator<SelectionKey> keyIterator) {
         TCB tcb = (TCB) key.attachment();
         synchronized (tcb) {
 
-            Packet referencePacket = tcb.referencePacket;
+            TCPHeaderTemplate headerTemplate = tcb.headerTemplate;
             try {
                 if (tcb.channel.finishConnect()) {
 
@@ -98,41 +152,89 @@ class TCPInput implements Runnable {
 
                     keyIterator.remove();
                     tcb.status = TCBStatus.SYN_RECEIVED;
+                    measureRoundTrip(tcb);
 
-                    // TODO: Set MSS for receiving larger packets from the device
                     ByteBuffer responseBuffer = ByteBufferPool.acquire();
-                    referencePacket.updateTCPBuffer(responseBuffer, (byte) (Packet.TCPHeader.SYN | Packet.TCPHeader.ACK),
-                            tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                    headerTemplate.updateSYNACKBuffer(responseBuffer, tcb.mySequenceNum, tcb.myAcknowledgementNum);
 
                     KLog.d(TAG, tcb.ipAndPort + " TCP netToDevice SYN|ACK");
 
-                    outputQueue.offer(responseBuffer);
+                    offerToDevice(responseBuffer);
 
                     tcb.mySequenceNum++; // SYN counts as a byte
-                    key.interestOps(SelectionKey.OP_READ);
+                    tcb.setInterest(SelectionKey.OP_CONNECT, false);
+                    tcb.setInterest(SelectionKey.OP_READ, true);
                 } else {
                     KLog.w(TAG, tcb.ipAndPort + " not finishConnect!!!");
                 }
             } catch (IOException e) {
                 KLog.e(TAG, tcb.ipAndPort + " Connection error: " + e.toString());
                 ByteBuffer responseBuffer = ByteBufferPool.acquire();
-                referencePacket.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+                headerTemplate.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
 
                 KLog.w(TAG, tcb.ipAndPort + " TCP netToDevice RST");
 
-                outputQueue.offer(responseBuffer);
+                offerToDevice(responseBuffer);
                 TCB.closeTCB(tcb);//maybe change zhangjie 2015.12.8
             }
         }
     }
 
+    /**
+     * Takes the connect as one round trip to the server, and resizes the socket buffers to the
+     * bandwidth-delay product of this flow's path.
+     */
+    private void measureRoundTrip(TCB tcb) {
+        long rttNanos = System.nanoTime() - tcb.connectNanos;
+        BandwidthEstimator.recordRtt(rttNanos);
+        int bufferSize = BandwidthEstimator.bufferSize(rttNanos);
+        try {
+            tcb.channel.socket().setReceiveBufferSize(bufferSize);
+            tcb.channel.socket().setSendBufferSize(bufferSize);
+        } catch (SocketException e) {
+            // Keeps the sizes set before connecting
+            KLog.w(TAG, tcb.ipAndPort + " " + e.toString());
+        }
+    }
+
+    /**
+     * Drains device payload the server socket couldn't take earlier, and acknowledges
+     * to the device whatever it took now.
+     */
+    private void processWrite(SelectionKey key) {
+        TCB tcb = (TCB) key.attachment();
+        synchronized (tcb) {
+            TCPHeaderTemplate headerTemplate = tcb.headerTemplate;
+            int written;
+            try {
+                written = tcb.flushWrites();
+            } catch (IOException e) {
+                KLog.e(TAG, tcb.ipAndPort + " Network write error: " + e.toString());
+                ByteBuffer responseBuffer = ByteBufferPool.acquire();
+                headerTemplate.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+                KLog.w(TAG, tcb.ipAndPort + " TCP netToDevice RST");
+                offerToDevice(responseBuffer);
+                TCB.closeTCB(tcb);
+                return;
+            }
+
+            ByteBuffer finBuffer = tcb.answerFin();
+            if (finBuffer != null) {
+                KLog.d(TAG, tcb.ipAndPort + " FIN answered after the last write");
+                offerToDevice(finBuffer);
+            } else if (written > 0) {
+                tcb.myAcknowledgementNum = tcb.receiveNextNum - tcb.pendingWriteBytes;
+                ByteBuffer responseBuffer = ByteBufferPool.acquire();
+                headerTemplate.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.ACK, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                tcb.ackSent();
+                offerToDevice(responseBuffer);
+            }
+        }
+    }
+
     private void processInput(SelectionKey key, Iterator<SelectionKey> keyIterator) {
         keyIterator.remove();
 
-        ByteBuffer receiveBuffer = ByteBufferPool.acquire();
-        // Leave space for the header
-        receiveBuffer.position(HEADER_SIZE);
-
         TCB tcb = (TCB) key.attachment();
         synchronized (tcb) {
             //KLog.d(TAG, tcb.ipAndPort + " st = " + tcb.status);
@@ -140,21 +242,39 @@ class TCPInput implements Runnable {
             //zhangjie add 2015.12.11
             tcb.refreshDataEXTime();
 
-            Packet referencePacket = tcb.referencePacket;
+            TCPHeaderTemplate headerTemplate = tcb.headerTemplate;
             SocketChannel inputChannel = (SocketChannel) key.channel();
-            int readBytes;
+            int window = tcb.sendWindow();
+            if (window == 0) {
+                tcb.pauseReading();
+                return;
+            }
+
+            // Never read more than the device can take, the rest waits in the socket buffer
+            int segmentSize = headerTemplate.maxSegmentSize;
+            int readLimit = Math.min(MAX_READ_SIZE, window);
+            int segments = Math.min((readLimit + segmentSize - 1) / segmentSize, MAX_READ_SEGMENTS);
+            for (int i = 0; i < segments; i++) {
+                if (readBuffers[i] == null)
+                    readBuffers[i] = ByteBufferPool.acquire();
+                // Payload goes right behind the space for the header
+                readBuffers[i].limit(HEADER_SIZE + Math.min(segmentSize, readLimit - i * segmentSize));
+                readBuffers[i].position(HEADER_SIZE);
+            }
+
+            long readBytes;
             try {
-                readBytes = inputChannel.read(receiveBuffer);
+                readBytes = inputChannel.read(readBuffers, 0, segments);
             } catch (IOException e) {
                 KLog.e(TAG, tcb.ipAndPort + " Network read error: " + e.toString());
 
                 if (tcb.status == TCBStatus.CLOSE_WAIT || tcb.status == TCBStatus.LAST_ACK) {
                     KLog.w(TAG, tcb.ipAndPort + " closeTCB st = " + tcb.status);
-                    ByteBufferPool.release(receiveBuffer);
                 } else {
-                    referencePacket.updateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+                    ByteBuffer responseBuffer = ByteBufferPool.acquire();
+                    headerTemplate.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
                     KLog.w(TAG, tcb.ipAndPort + " TCP netToDevice RST");
-                    outputQueue.offer(receiveBuffer);
+                    offerToDevice(responseBuffer);
                 }
 
                 TCB.closeTCB(tcb);
@@ -163,60 +283,166 @@ class TCPInput implements Runnable {
 
             if (readBytes == -1) {
                 // End of stream, stop waiting until we push more data
-                key.interestOps(0);
+                tcb.setInterest(SelectionKey.OP_READ, false);
                 tcb.waitingForNetworkData = false;
 
                 if (tcb.status != TCBStatus.CLOSE_WAIT) {
-                    if ((tcb.readDataTime > 0) && (System.currentTimeMillis() - tcb.readDataTime > 30 * 1000)) {
+                    if ((tcb.readDataTime > 0) && (TimerWheel.now() - tcb.readDataTime > 30 * 1000)) {
                         KLog.d(TAG, tcb.ipAndPort + " st = " + tcb.status + " readDataTime > 30*1000");
                         TCB.closeTCB(tcb);
                         return;
                     } else {
                         KLog.d(TAG, tcb.ipAndPort + " st = " + tcb.status + " release receiveBuffer");
-                        //ByteBufferPool.release(receiveBuffer);
-                        //return;
-                        tcb.status = TCBStatus.LAST_ACK;
-                        referencePacket.updateTCPBuffer(receiveBuffer, (byte)( Packet.TCPHeader.FIN | Packet.TCPHeader.ACK), tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                        ByteBuffer responseBuffer = ByteBufferPool.acquire();
+                        tcb.linger(TCBStatus.LAST_ACK);
+                        headerTemplate.updateTCPBuffer(responseBuffer, (byte)( Packet.TCPHeader.FIN | Packet.TCPHeader.ACK), tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
                         tcb.mySequenceNum++; // FIN counts as a byte
                         KLog.d(TAG, tcb.ipAndPort + " TCP netToDevice FIN|ACK");
-                        outputQueue.offer(receiveBuffer);
+                        offerToDevice(responseBuffer);
                         return;
                     }
                 }
 
-                tcb.status = TCBStatus.LAST_ACK;
-                referencePacket.updateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.FIN, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                ByteBuffer responseBuffer = ByteBufferPool.acquire();
+                tcb.linger(TCBStatus.LAST_ACK);
+                headerTemplate.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.FIN, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
                 tcb.mySequenceNum++; // FIN counts as a byte
                 KLog.d(TAG, tcb.ipAndPort + " TCP netToDevice FIN");
-            } else {
-                tcb.readDataTime = System.currentTimeMillis();
-                tcb.readlen += readBytes;
-
-                int ret = 0;
-                if( tcb.kancolleServer.httpPacketStatus == httpPacket.HTTP_NULL) {
-                    if (readBytes > 48) {
-                        String HTTP = new String(Arrays.copyOfRange(receiveBuffer.array(), 44, 48));
-                        if (HTTP.equals("HTTP")) {
-                            ret = tcb.kancolleServer.processServer(Arrays.copyOfRange(receiveBuffer.array(),44,readBytes+44));
-                        }
-                    }
-                }
-                else {
-                    ret = tcb.kancolleServer.processServer(Arrays.copyOfRange(receiveBuffer.array(),44,readBytes+44));
+                offerToDevice(responseBuffer);
+                return;
+            }
+
+            readStats.record((int) readBytes);
+            wakeupBytes += readBytes;
+            long now = System.nanoTime();
+            if (tcb.firstReadNanos == 0)
+                tcb.firstReadNanos = now;
+            tcb.lastReadNanos = now;
+            tcb.readDataTime = TimerWheel.now();
+            tcb.readlen += readBytes;
+
+            // Buffers are filled in order, a partly filled one is the last
+            int filled = 0;
+            while (filled < segments && readBuffers[filled].position() > HEADER_SIZE)
+                filled++;
+            // Everything but the game API goes to the device uninspected
+            if (tcb.flowClass == TCB.FlowClass.GAME_API) {
+                for (int i = 0; i < filled; i++)
+                    inspect(tcb, readBuffers[i]);
+            }
+
+            sendSegments(tcb, filled, now);
+            if (tcb.sendWindow() == 0)
+                tcb.pauseReading();
+        }
+    }
+
+    /**
+     * Hands the payload a read left behind the header space to the game API parser.
+     */
+    private void inspect(TCB tcb, ByteBuffer segment) {
+        ByteBuffer payload = segment.duplicate();
+        payload.flip();
+        payload.position(HEADER_SIZE);
+        try {
+            int ret = 0;
+            if( tcb.kancolleServer.httpPacketStatus == httpPacket.HTTP_NULL) {
+                if (httpPacket.startsWith(payload, "HTTP")) {
+                    ret = tcb.kancolleServer.processServer(httpPacket.copyRemaining(payload));
                 }
-                if(ret == 1){
-                    APIqueue.offer(tcb.kancolleServer.httpPacketBuffer);
-                    tcb.kancolleServer.clear();
+            }
+            else {
+                ret = tcb.kancolleServer.processServer(httpPacket.copyRemaining(payload));
+            }
+            if(ret == 1){
+                APIqueue.offer(tcb.kancolleServer.httpPacketBuffer);
+                tcb.kancolleServer.clear();
+            }
+        }
+        catch (IllegalArgumentException e){
+            // A response the parser doesn't understand must not stop this reactor
+            KLog.w(TAG, tcb.ipAndPort + " " + e.toString());
+        }
+    }
+
+    /**
+     * Turns the first count read buffers into segments by writing each header in front of the
+     * payload the read left there. Only the last one carries PSH.
+     */
+    void sendSegments(TCB tcb, int count, long now) {
+        // Nothing read, a delayed ACK TCPOutput holds back is still due
+        if (count == 0)
+            return;
+        TCPHeaderTemplate headerTemplate = tcb.headerTemplate;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer segment = readBuffers[i];
+            readBuffers[i] = null;
+            int payloadSize = segment.position() - HEADER_SIZE;
+            boolean last = i == count - 1;
+
+            byte flags = (byte) (last ? Packet.TCPHeader.PSH | Packet.TCPHeader.ACK : Packet.TCPHeader.ACK);
+            headerTemplate.updateTCPBuffer(segment, flags, tcb.mySequenceNum, tcb.myAcknowledgementNum, payloadSize);
+            tcb.mySequenceNum += payloadSize; // Next sequence number
+            segment.position(HEADER_SIZE + payloadSize);
+            //KLog.d(TAG, tcb.ipAndPort + " TCP netToDevice " + (last ? "PSH|ACK" : "ACK") + " payloadSize = " + payloadSize);
+
+            // VPNOutput releases what it writes, so the copy kept for resending is a separate buffer
+            ByteBuffer sendBuffer = ByteBufferPool.acquire();
+            segment.flip();
+            sendBuffer.put(segment.duplicate());
+            offerToDevice(sendBuffer);
+            tcb.retransmissionQueue.add(segment, now);
+        }
+        // The data carried any ACK TCPOutput was holding back
+        tcb.ackSent();
+
+        if (!tcb.retransmitScheduled) {
+            tcb.retransmitScheduled = true;
+            unacknowledged.add(tcb);
+        }
+    }
+
+    /**
+     * @return nanoseconds until retransmissions are checked next, -1 if no flow has data in flight
+     */
+    long timeoutNanos(long now) {
+        if (unacknowledged.isEmpty())
+            return -1;
+        return Math.max(nextRetransmitCheck - now, 0);
+    }
+
+    /**
+     * Resends the oldest segment of every flow whose RTO has run out. Flows drop off the
+     * list once the device has acknowledged everything.
+     */
+    private void checkRetransmissions() {
+        long now = System.nanoTime();
+        if (now - nextRetransmitCheck < 0)
+            return;
+        nextRetransmitCheck = now + RETRANSMIT_CHECK_NANOS;
+
+        for (int i = unacknowledged.size() - 1; i >= 0; i--) {
+            TCB tcb = unacknowledged.get(i);
+            synchronized (tcb) {
+                RetransmissionQueue retransmissionQueue = tcb.retransmissionQueue;
+                if (retransmissionQueue.isEmpty()) {
+                    tcb.retransmitScheduled = false;
+                    unacknowledged.set(i, unacknowledged.get(unacknowledged.size() - 1));
+                    unacknowledged.remove(unacknowledged.size() - 1);
+                } else if (retransmissionQueue.timedOut(now)) {
+                    KLog.d(TAG, tcb.ipAndPort + " RTO retransmit");
+                    offerToDevice(retransmissionQueue.retransmit(tcb.headerTemplate, tcb.myAcknowledgementNum));
                 }
-                // XXX: We should ideally be splitting segments by MTU/MSS, but this seems to work without
-                referencePacket.updateTCPBuffer(receiveBuffer, (byte) (Packet.TCPHeader.PSH | Packet.TCPHeader.ACK),
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, readBytes);
-                tcb.mySequenceNum += readBytes; // Next sequence number
-                receiveBuffer.position(HEADER_SIZE + readBytes);
-                //KLog.d(TAG, tcb.ipAndPort + " TCP netToDevice PSH|ACK readBytes = " + readBytes);
             }
         }
+    }
 
-        outputQueue.offer(receiveBuffer);
+    /**
+     * Queues a buffer for the device. A BLOCK ring gives up when this thread is interrupted
+     * while waiting for space, the buffer is released then.
+     */
+    private void offerToDevice(ByteBuffer buffer) {
+        if (!outputQueue.offer(buffer))
+            ByteBufferPool.release(buffer);
     }
 }
@@ -21,39 +21,47 @@ import android.util.Log;
 import com.socks.library.KLog;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Queue;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import xyz.hexene.localvpn.Packet.TCPHeader;
+import xyz.hexene.localvpn.TCB.FlowClass;
 import xyz.hexene.localvpn.TCB.TCBStatus;
 
 class TCPOutput implements Runnable {
     private static final String TAG = TCPOutput.class.getSimpleName();
 
-    private static final int CONNECT_TIMEOUT = 10000 * 1000;
+    // How often due delayed ACKs are looked for while some are pending
+    private static final long DELAYED_ACK_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Packets after which gathered writes go out even if the ring still has more
+    private static final int FLUSH_BATCH = 32;
 
     private LocalVPNService vpnService;
-    private ConcurrentLinkedQueue<Packet> inputQueue;
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
+    private RingBuffer<ByteBuffer> inputQueue;
+    private Queue<ByteBuffer> outputQueue;
     private LinkedBlockingQueue<byte[]> APIqueue;
-    private Selector selector;
+    private SelectorCommandQueue selectorCommands;
 
     private Random random = new Random();
-
-    public TCPOutput(ConcurrentLinkedQueue<Packet> inputQueue, ConcurrentLinkedQueue<ByteBuffer> outputQueue,
-                     LinkedBlockingQueue<byte[]> APIqueue,Selector selector, LocalVPNService vpnService) {
+    private final Packet currentPacket = new Packet();
+    // Flows holding back an ACK, only touched by this thread
+    private final ArrayList<TCB> delayedAcks = new ArrayList<>();
+    // Flows with THROUGHPUT writes gathered since the last flush, likewise
+    private final ArrayList<TCB> gatheredWrites = new ArrayList<>();
+
+    public TCPOutput(RingBuffer<ByteBuffer> inputQueue, Queue<ByteBuffer> outputQueue,
+                     LinkedBlockingQueue<byte[]> APIqueue, SelectorCommandQueue selectorCommands, LocalVPNService vpnService) {
         this.inputQueue = inputQueue;
         this.outputQueue = outputQueue;
         this.APIqueue = APIqueue;
-        this.selector = selector;
+        this.selectorCommands = selectorCommands;
         this.vpnService = vpnService;
     }
 
@@ -62,92 +70,194 @@ class TCPOutput implements Runnable {
         KLog.i(TAG, "Started");
 
         try {
-            Thread currentThread = Thread.currentThread();
+            int batched = 0;
             while (true) {
-                Packet currentPacket;
-                // TODO: Block when not connected
-                do {
-                    currentPacket = inputQueue.poll();
-                    if (currentPacket != null)
-                        break;
-                    Thread.sleep(10);
-                } while (!currentThread.isInterrupted());
-
-                if (currentThread.isInterrupted()) {
-                    KLog.w(TAG, "currentThread.isInterrupted !!!");
-                    break;
+                ByteBuffer payloadBuffer = inputQueue.poll();
+                if (payloadBuffer == null || batched == FLUSH_BATCH) {
+                    // The batch VPNRunnable offered is done, or a busy ring has kept gathered
+                    // writes long enough; they go out before waiting or going on
+                    flushGatheredWrites();
+                    batched = 0;
+                }
+                if (payloadBuffer == null) {
+                    // Waits for the next packet, or for the next delayed ACK check
+                    if (delayedAcks.isEmpty())
+                        payloadBuffer = inputQueue.take();
+                    else
+                        payloadBuffer = inputQueue.poll(DELAYED_ACK_CHECK_NANOS);
+                }
+                if (payloadBuffer != null) {
+                    processPacket(payloadBuffer);
+                    batched++;
                 }
+                sendDelayedAcks();
+            }
+        } catch (InterruptedException e) {
+            KLog.w(TAG, "Stopping");
+        } catch (Exception e) {
+            Log.e(TAG, e.toString(), e);
+        } finally {
+            // Flows are closed by the service once every reactor has stopped
+            KLog.i("stopped run");
+        }
+    }
 
-                ByteBuffer payloadBuffer = currentPacket.backingBuffer;
-                currentPacket.backingBuffer = null;
-                ByteBuffer responseBuffer = ByteBufferPool.acquire();
+    /**
+     * Handles one packet from the device to completion, releasing it unless it was kept.
+     * An I/O error only resets the packet's flow, never stops the caller's loop.
+     */
+    void processPacket(ByteBuffer payloadBuffer) {
+        currentPacket.wrap(payloadBuffer);
 
-                InetAddress destinationAddress = currentPacket.ip4Header.destinationAddress;
+        int destinationAddress = currentPacket.ip4Header.getDestinationAddress();
 
-                TCPHeader tcpHeader = currentPacket.tcpHeader;
-                int destinationPort = tcpHeader.destinationPort;
-                int sourcePort = tcpHeader.sourcePort;
+        TCPHeader tcpHeader = currentPacket.tcpHeader;
+        int destinationPort = tcpHeader.getDestinationPort();
+        int sourcePort = tcpHeader.getSourcePort();
 
-                String ipAndPort = destinationAddress.getHostAddress() + ":" +
-                        destinationPort + ":" + sourcePort;
+        long key = FlowTable.key(destinationAddress, destinationPort, sourcePort);
+        TCB tcb = TCB.getTCB(key);
+        boolean payloadKept = false;
 
-                TCB tcb = TCB.getTCB(ipAndPort);
+        //zhangjie add 2015.12.11
+        if (tcb != null) {
+            tcb.refreshDataEXTime();
+        }
 
-                //zhangjie add 2015.12.11
-                if (tcb != null) {
-                    tcb.refreshDataEXTime();
-                }
+        // Responses are acquired where they are sent, so nothing is left to release here
+        try {
+            if (tcb == null) {
+                initializeConnection(key, destinationAddress, destinationPort, sourcePort,
+                        currentPacket, tcpHeader);
+            } else if (tcpHeader.isSYN()) {
+                processDuplicateSYN(tcb, tcpHeader);
+            } else if (tcpHeader.isRST()) {
+                KLog.i(TAG, tcb.ipAndPort + " isRST" + " st = " + tcb.status + " readLen = " + tcb.readlen);
+                //closeCleanly(tcb, responseBuffer);
+                TCB.closeTCB(tcb);
+            } else if (tcpHeader.isACK() || tcpHeader.isFIN()) {
+                // A FIN's payload and ACK are taken like any other segment's, before the FIN
+                int payloadSize = payloadBuffer.remaining();
+                payloadKept = processACK(tcb, tcpHeader, payloadBuffer);
+                if (tcpHeader.isFIN())
+                    processFIN(tcb, tcpHeader, payloadSize);
+            } else {
+                KLog.w("ipAndPort = " + tcb.ipAndPort + "->unknow type!!!");
+            }
+        } catch (IOException e) {
+            KLog.e(TAG, (tcb != null ? tcb.ipAndPort : Packet.addressToString(destinationAddress)) + " Packet error: " + e.toString());
+            if (tcb != null)
+                sendRST(tcb, 0);
+        } finally {
+            if (!payloadKept)
+                ByteBufferPool.release(payloadBuffer);
+        }
+    }
 
-                if (tcb == null) {
-                    initializeConnection(ipAndPort, destinationAddress, destinationPort,
-                            currentPacket, tcpHeader, responseBuffer);
-                } else if (tcpHeader.isSYN()) {
-                    processDuplicateSYN(tcb, tcpHeader, responseBuffer);
-                } else if (tcpHeader.isRST()) {
-                    KLog.i(TAG, tcb.ipAndPort + " isRST" + " st = " + tcb.status + " readLen = " + tcb.readlen);
-                    //closeCleanly(tcb, responseBuffer);
-                    TCB.closeTCB(tcb);
-                } else if (tcpHeader.isFIN()) {
-                    processFIN(tcb, tcpHeader, responseBuffer);
-                } else if (tcpHeader.isACK()) {
-                    processACK(tcb, tcpHeader, payloadBuffer, responseBuffer);
-                } else {
-                    KLog.w("ipAndPort = " + ipAndPort + "->unknow type!!!");
-                }
-                // XXX: cleanup later
-                if (responseBuffer.position() == 0) {
-                    ByteBufferPool.release(responseBuffer);
+    /**
+     * Writes what THROUGHPUT flows gathered from the packets processed since the last call,
+     * one gathering write per flow, and acknowledges what the servers took.
+     */
+    void flushGatheredWrites() {
+        for (int i = 0; i < gatheredWrites.size(); i++) {
+            TCB tcb = gatheredWrites.get(i);
+            synchronized (tcb) {
+                tcb.gatherScheduled = false;
+                if (tcb.isCancelled() || !tcb.writesGathered())
+                    continue;
+                try {
+                    tcb.flushWrites();
+                } catch (IOException e) {
+                    KLog.e(TAG, tcb.ipAndPort + " Network write error: " + e.toString());
+                    sendRST(tcb, 0);
+                    continue;
                 }
+                acknowledgeWritten(tcb, false);
+            }
+        }
+        gatheredWrites.clear();
+    }
 
-                ByteBufferPool.release(payloadBuffer);
+    /**
+     * Sends the ACKs whose delay ran out. Flows whose ACK went out some other way, on data
+     * from TCPInput or because a second segment came in, just drop off the list.
+     */
+    void sendDelayedAcks() {
+        if (delayedAcks.isEmpty())
+            return;
+        long now = System.nanoTime();
+        for (int i = delayedAcks.size() - 1; i >= 0; i--) {
+            TCB tcb = delayedAcks.get(i);
+            synchronized (tcb) {
+                if (tcb.ackDeadline != 0 && now - tcb.ackDeadline < 0)
+                    continue;
+                if (tcb.ackDeadline != 0 && !tcb.isCancelled())
+                    sendAck(tcb);
+                tcb.delayedAckScheduled = false;
+                delayedAcks.set(i, delayedAcks.get(delayedAcks.size() - 1));
+                delayedAcks.remove(delayedAcks.size() - 1);
             }
-        } catch (InterruptedException e) {
-            KLog.w(TAG, "Stopping");
-        } catch (Exception e) {
-            Log.e(TAG, e.toString(), e);
-        } finally {
-            TCB.closeAll();
-            KLog.i("stopped run");
         }
     }
 
-    private void initializeConnection(String ipAndPort, InetAddress destinationAddress, int destinationPort,
-                                      Packet currentPacket, TCPHeader tcpHeader, ByteBuffer responseBuffer)
+    /**
+     * @return nanoseconds until the earliest delayed ACK is due, -1 if none is held back
+     */
+    long timeoutNanos(long now) {
+        long timeout = -1;
+        for (int i = 0; i < delayedAcks.size(); i++) {
+            long ackDeadline = delayedAcks.get(i).ackDeadline;
+            // 0 went out already, sendDelayedAcks() drops it
+            if (ackDeadline == 0)
+                continue;
+            long remaining = Math.max(ackDeadline - now, 0);
+            if (timeout < 0 || remaining < timeout)
+                timeout = remaining;
+        }
+        return timeout;
+    }
+
+    private void initializeConnection(long key, int destinationAddress, int destinationPort, int sourcePort,
+                                      Packet currentPacket, TCPHeader tcpHeader)
             throws IOException {
         //KLog.i("initializeConnection "+tcpHeader.isSYN()+tcpHeader.isRST()+tcpHeader.isFIN()+tcpHeader.isACK());
-        currentPacket.swapSourceAndDestination();
+        String ipAndPort = Packet.addressToString(destinationAddress) + ":" +
+                destinationPort + ":" + sourcePort;
         if (tcpHeader.isSYN()) {
-            SocketChannel outputChannel = SocketChannel.open();
-            vpnService.protect(outputChannel.socket());
-            outputChannel.configureBlocking(false);
+            TCPHeaderTemplate headerTemplate = new TCPHeaderTemplate(currentPacket);
+
+            SocketChannel outputChannel = null;
+            try {
+                outputChannel = SocketChannel.open();
+                vpnService.protect(outputChannel.socket());
+                outputChannel.configureBlocking(false);
+            } catch (IOException e) {
+                // E.g. out of descriptors, the device gets a reset instead of waiting for a SYN-ACK
+                KLog.e(TAG, ipAndPort + " Socket error: " + e.toString());
+                LocalVPNService.closeResources(outputChannel);
+                ByteBuffer responseBuffer = ByteBufferPool.acquire();
+                headerTemplate.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.RST | TCPHeader.ACK), 0, tcpHeader.getSequenceNumber() + 1, 0);
+                offerToDevice(responseBuffer);
+                return;
+            }
 
-            TCB tcb = new TCB(ipAndPort, random.nextInt(Short.MAX_VALUE + 1), tcpHeader.sequenceNumber, tcpHeader.sequenceNumber + 1,
-                    tcpHeader.acknowledgementNumber, outputChannel, currentPacket);
-            TCB.putTCB(ipAndPort, tcb);
+            // Nothing of ours is acknowledged yet, so their ACK starts at our initial sequence number
+            long initialSequenceNum = random.nextInt(Short.MAX_VALUE + 1);
+            TCB tcb = new TCB(key, ipAndPort, initialSequenceNum, tcpHeader.getSequenceNumber(), tcpHeader.getSequenceNumber() + 1,
+                    initialSequenceNum, outputChannel, headerTemplate);
+            tcb.deviceWindow = tcpHeader.getWindow();
+            tcb.setFlowClass(FlowClassifier.classify(destinationAddress, destinationPort));
+            TCB.putTCB(tcb);
 
             try {
-                outputChannel.socket().setReceiveBufferSize(65535);
-                outputChannel.socket().setSendBufferSize(65535);
+                // Sized to the path's bandwidth-delay product; set before connecting, as the
+                // window scale is fixed by the SYN
+                int bufferSize = BandwidthEstimator.bufferSize();
+                outputChannel.socket().setReceiveBufferSize(bufferSize);
+                outputChannel.socket().setSendBufferSize(bufferSize);
+                // Every flow starts in LATENCY, until it is known to be bulk
+                outputChannel.socket().setTcpNoDelay(true);
+                tcb.connectNanos = System.nanoTime();
                 /*
                 if (destinationPort == 80 && vpnService.getWeProxyAvailability()) {
                     KLog.d(TAG, ipAndPort + " use proxy " + vpnService.getWeProxyHost() + ":" + vpnService.getWeProxyPort());
@@ -156,18 +266,21 @@ class TCPOutput implements Runnable {
                     outputChannel.connect(new InetSocketAddress(destinationAddress, destinationPort));
                 }
                 */
-                outputChannel.connect(new InetSocketAddress(destinationAddress, destinationPort));
+                outputChannel.connect(new InetSocketAddress(Packet.addressToInetAddress(destinationAddress), destinationPort));
 
-                tcb.status = TCBStatus.SYN_SENT;
-                selector.wakeup();
-                tcb.selectionKey = outputChannel.register(selector, SelectionKey.OP_CONNECT, tcb);
+                synchronized (tcb) {
+                    tcb.status = TCBStatus.SYN_SENT;
+                    tcb.selectorCommands = selectorCommands;
+                    tcb.setInterest(SelectionKey.OP_CONNECT, true);
+                }
                 //return;
             } catch (IOException e) {
                 KLog.e(TAG, ipAndPort + " Connection error: " + e.toString());
-                currentPacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+                ByteBuffer responseBuffer = ByteBufferPool.acquire();
+                headerTemplate.updateTCPBuffer(responseBuffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
 
                 KLog.w(TAG, ipAndPort + " Connection netToDevice RST");
-                outputQueue.offer(responseBuffer);
+                offerToDevice(responseBuffer);
                 TCB.closeTCB(tcb);//maybe change zhangjie 2015.12.8
                 //return;
             }
@@ -175,7 +288,7 @@ class TCPOutput implements Runnable {
             //KLog.w(TAG, ipAndPort + " " + tcpHeader.toString());
             /* zhangjie 2015.12.9
             currentPacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.RST,
-                    0, tcpHeader.sequenceNumber + 1, 0);
+                    0, tcpHeader.getSequenceNumber() + 1, 0);
             KLog.w(TAG, ipAndPort + " TCP netToDevice RST");
             */
             //return;
@@ -184,64 +297,85 @@ class TCPOutput implements Runnable {
         //outputQueue.offer(responseBuffer);
     }
 
-    private void processDuplicateSYN(TCB tcb, TCPHeader tcpHeader, ByteBuffer responseBuffer) {
+    private void processDuplicateSYN(TCB tcb, TCPHeader tcpHeader) {
         synchronized (tcb) {
             if (tcb.status == TCBStatus.SYN_SENT) {
-                tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
+                tcb.receiveNextNum = tcpHeader.getSequenceNumber() + 1;
+                tcb.myAcknowledgementNum = tcb.receiveNextNum;
                 return;
             }
         }
-        sendRST(tcb, 1, responseBuffer);
+        sendRST(tcb, 1);
     }
 
-    private void processFIN(TCB tcb, TCPHeader tcpHeader, ByteBuffer responseBuffer) {
+    /**
+     * Takes the FIN once everything before it reached the stream, and answers it once that
+     * reached the server too. A FIN behind a gap is left for the device to resend, after a
+     * duplicate ACK for what is missing.
+     */
+    private void processFIN(TCB tcb, TCPHeader tcpHeader, int payloadSize) {
+        ByteBuffer responseBuffer;
         synchronized (tcb) {
-            KLog.d(TAG, tcb.ipAndPort + " FIN");
-            Packet referencePacket = tcb.referencePacket;
-            tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
-            tcb.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
-
-            if (true) {
-                tcb.status = TCBStatus.LAST_ACK;
-                referencePacket.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.FIN | TCPHeader.ACK),
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
-                tcb.mySequenceNum++; // FIN counts as a byte
-                KLog.d(TAG, tcb.ipAndPort + " FIN netToDevice FIN|ACK");
-                outputQueue.offer(responseBuffer);
+            if (tcb.isCancelled())
+                return;
+            long finSequenceNum = tcpHeader.getSequenceNumber() + payloadSize;
+            if (tcb.finReceived && (int) (finSequenceNum + 1 - tcb.receiveNextNum) == 0) {
+                // Resent, our answer was lost or still waits for the server; it takes no
+                // sequence number again
+                KLog.d(TAG, tcb.ipAndPort + " duplicate FIN st = " + tcb.status);
+                if (tcb.status == TCBStatus.LAST_ACK && tcb.pendingWriteBytes == 0) {
+                    responseBuffer = ByteBufferPool.acquire();
+                    tcb.headerTemplate.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.FIN | TCPHeader.ACK),
+                            tcb.mySequenceNum - 1, tcb.myAcknowledgementNum, 0);
+                    tcb.ackSent();
+                    offerToDevice(responseBuffer);
+                } else if (payloadSize == 0) {
+                    sendAck(tcb);
+                }
                 return;
             }
-
-            if (tcb.waitingForNetworkData/* && tcb.readlen == 0*/) {
-                tcb.status = TCBStatus.CLOSE_WAIT;
-                referencePacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK,
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
-                KLog.d(TAG, tcb.ipAndPort + " FIN netToDevice ACK");
-            } else {
-                tcb.status = TCBStatus.LAST_ACK;
-                referencePacket.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.FIN | TCPHeader.ACK),
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
-                tcb.mySequenceNum++; // FIN counts as a byte
-                KLog.d(TAG, tcb.ipAndPort + " FIN netToDevice FIN|ACK");
+            if ((int) (finSequenceNum - tcb.receiveNextNum) != 0) {
+                KLog.d(TAG, tcb.ipAndPort + " FIN out of order seq = " + finSequenceNum + " expected = " + tcb.receiveNextNum);
+                // With payload, processACK already answered
+                if (payloadSize == 0)
+                    sendAck(tcb);
+                return;
+            }
+            KLog.d(TAG, tcb.ipAndPort + " FIN");
+            tcb.receiveNextNum++; // FIN counts as a byte
+            tcb.finReceived = true;
+            tcb.updateSendWindow(tcpHeader.getAcknowledgementNumber(), tcpHeader.getWindow() << tcb.headerTemplate.deviceWindowShift);
+            responseBuffer = tcb.answerFin();
+            if (responseBuffer == null) {
+                // The flush that writes the rest answers it
+                KLog.d(TAG, tcb.ipAndPort + " FIN waits for " + tcb.pendingWriteBytes + " bytes to the server");
+                return;
             }
+            KLog.d(TAG, tcb.ipAndPort + " FIN answered");
         }
 
-        outputQueue.offer(responseBuffer);
+        offerToDevice(responseBuffer);
     }
 
-    private void processACK(TCB tcb, TCPHeader tcpHeader, ByteBuffer payloadBuffer, ByteBuffer responseBuffer) throws IOException {
+    /**
+     * @return true if the payload buffer was queued for reassembly or writing and must not be released
+     */
+    boolean processACK(TCB tcb, TCPHeader tcpHeader, ByteBuffer payloadBuffer) throws IOException {
         int payloadSize = payloadBuffer.limit() - payloadBuffer.position();
+        boolean payloadKept = false;
 
         synchronized (tcb) {
-            SocketChannel outputChannel = tcb.channel;
-
+            // Closed by another thread since the lookup, the caller releases the payload
+            if (tcb.isCancelled())
+                return false;
             //KLog.d(TAG, tcb.ipAndPort + " st = " + tcb.status + "; waitData = " + tcb.waitingForNetworkData + "; payload = " + payloadSize);
 
             switch (tcb.status) {
                 case SYN_SENT:{
                     //connect还没有成功
-                    sendRST(tcb, payloadSize, responseBuffer);
+                    sendRST(tcb, payloadSize);
                 }
-                return;
+                return false;
 
                 case SYN_RECEIVED: {
                     tcb.status = TCBStatus.ESTABLISHED;
@@ -252,84 +386,207 @@ class TCPOutput implements Runnable {
                 break;
 
                 case LAST_ACK: {
-                    //closeCleanly(tcb, responseBuffer);
-                    TCB.closeTCB(tcb);
+                    // Only an ACK of our FIN ends the flow. Anything older may still ask for a
+                    // segment of the last flight, which the retransmission queue has to resend.
+                    if (!TCB.sequenceAfter(tcb.mySequenceNum, tcpHeader.getAcknowledgementNumber())) {
+                        //closeCleanly(tcb, responseBuffer);
+                        TCB.closeTCB(tcb);
+                        return false;
+                    }
                 }
-                return;
+                break;
 
                 default:
                     break;
             }
 
+            long ackNum = tcpHeader.getAcknowledgementNumber();
+            int window = tcpHeader.getWindow() << tcb.headerTemplate.deviceWindowShift;
+            if (payloadSize == 0 && ackNum == tcb.theirAcknowledgementNum && window == tcb.deviceWindow
+                    && !tcb.retransmissionQueue.isEmpty() && ++tcb.duplicateAcks == 3) {
+                // Fast retransmit, the device keeps asking for the same segment
+                ByteBuffer retransmitBuffer = tcb.retransmissionQueue.retransmit(tcb.headerTemplate, tcb.myAcknowledgementNum);
+                KLog.d(TAG, tcb.ipAndPort + " fast retransmit seq = " + ackNum);
+                offerToDevice(retransmitBuffer);
+            }
+            tcb.updateSendWindow(ackNum, window);
+            if (tcb.readPaused && tcb.sendWindow() > 0) {
+                // The device made room, start reading from the server again
+                tcb.readPaused = false;
+                if (tcb.waitingForNetworkData)
+                    tcb.setInterest(SelectionKey.OP_READ, true);
+            }
+
             if (payloadSize == 0) {
-                return; // Empty ACK, ignore
+                return false; // Empty ACK, ignore
             }
 
             if (!tcb.waitingForNetworkData) {
                 //KLog.d(TAG, "st = " + tcb.status);
                 //selector.wakeup();
-                tcb.selectionKey.interestOps(SelectionKey.OP_READ);
+                if (!tcb.readPaused)
+                    tcb.setInterest(SelectionKey.OP_READ, true);
                 tcb.waitingForNetworkData = true;
             }
 
-            selector.wakeup();
-/*
-            if (payloadSize == 0) {
-                return; // Empty ACK, ignore
-            }
-*/
-            // Forward to remote server
+            long sequenceNum = tcpHeader.getSequenceNumber();
+            long nextSequenceNum = tcb.receiveNextNum;
+            // Forward to remote server, but only what continues the stream
             try {
-                while (payloadBuffer.hasRemaining()) {
-                    outputChannel.write(payloadBuffer);
-
-                    try {
-                        int ret = 0;
-                        if( tcb.kancolleClient.httpPacketStatus == httpPacket.HTTP_NULL) {
-                                String HTTP = new String(Arrays.copyOfRange(payloadBuffer.array(), 44, 48));
-                                if (HTTP.equals("POST") || HTTP.equals("GET ")) {
-                                    KLog.d(TAG, "!!GOT Client Request!! "+payloadSize);
-                                    ret = tcb.kancolleClient.processClient(Arrays.copyOfRange(payloadBuffer.array(),44,payloadSize+44));
-                                }
-                        }
-                        else {
-                            ret = tcb.kancolleClient.processClient(Arrays.copyOfRange(payloadBuffer.array(),44,payloadSize+44));
-                        }
-                        if(ret == 1){
-                            APIqueue.offer(tcb.kancolleClient.httpPacketBuffer);
-                            tcb.kancolleClient.clear();
-                        }
+                if (TCB.sequenceAfter(sequenceNum, nextSequenceNum)) {
+                    // A segment before this one is missing, hold it until the device resends that
+                    payloadKept = tcb.reassemblyQueue.offer(sequenceNum, payloadBuffer);
+                    KLog.d(TAG, tcb.ipAndPort + " out of order seq = " + sequenceNum + " expected = " + nextSequenceNum);
+                } else if (TCB.sequenceAfter(sequenceNum + payloadSize, nextSequenceNum)) {
+                    if (tcb.pendingWriteBytes >= TCPHeaderTemplate.RECEIVE_WINDOW) {
+                        // The server is a window behind, let the device resend this later
+                        return false;
                     }
-                    catch (IllegalArgumentException e){
 
+                    // Skip whatever part of a retransmission was already forwarded
+                    payloadBuffer.position(payloadBuffer.position() + (int) (nextSequenceNum - sequenceNum));
+                    payloadKept = forward(tcb, payloadBuffer);
+                    nextSequenceNum = sequenceNum + payloadSize;
+
+                    boolean filledGap = false;
+                    ByteBuffer queued;
+                    while ((queued = tcb.reassemblyQueue.poll(nextSequenceNum)) != null) {
+                        filledGap = true;
+                        nextSequenceNum += queued.remaining();
+                        boolean queuedKept = false;
+                        try {
+                            queuedKept = forward(tcb, queued);
+                        } finally {
+                            if (!queuedKept)
+                                ByteBufferPool.release(queued);
+                        }
+                    }
+                    tcb.receiveNextNum = nextSequenceNum;
+                    tcb.unackedSegments++;
+                    if (tcb.writesGathered() && !tcb.gatherScheduled) {
+                        tcb.gatherScheduled = true;
+                        gatheredWrites.add(tcb);
                     }
-                    //KLog.i(TAG,"HTTP request: " + new String(Arrays.copyOfRange(payloadBuffer.array(),44,payloadSize)));
+
+                    // Recovery after a loss is ACKed at once
+                    acknowledgeWritten(tcb, filledGap || !tcb.reassemblyQueue.isEmpty());
+                    return payloadKept;
                 }
-            } catch (Exception e) {
+                // else a duplicate, only ACK again
+            } catch (IOException e) {
                 KLog.e(TAG, tcb.ipAndPort + " Network write error: " + e.toString());
-                sendRST(tcb, payloadSize, responseBuffer);
-                return;
+                sendRST(tcb, payloadSize);
+                return payloadKept;
+            }
+
+            // Cumulative, a gap makes this a duplicate ACK that tells the device what is missing
+            sendAck(tcb);
+        }
+        return payloadKept;
+    }
+
+    /**
+     * Acknowledges what reached the server since the last ACK, every second segment at once
+     * and otherwise after a delay. Data still pending isn't acknowledged; the flush that
+     * writes it, here or in TCPInput on OP_WRITE, comes back to ACK it, and a FIN behind it.
+     */
+    private void acknowledgeWritten(TCB tcb, boolean immediate) {
+        ByteBuffer finBuffer = tcb.answerFin();
+        if (finBuffer != null) {
+            offerToDevice(finBuffer);
+            return;
+        }
+        long myAckNum = tcb.receiveNextNum - tcb.pendingWriteBytes;
+        if (myAckNum == tcb.myAcknowledgementNum)
+            return;
+        tcb.myAcknowledgementNum = myAckNum;
+
+        if (!immediate && tcb.delayAck(System.nanoTime())) {
+            if (!tcb.delayedAckScheduled) {
+                tcb.delayedAckScheduled = true;
+                delayedAcks.add(tcb);
+            }
+            return;
+        }
+        sendAck(tcb);
+    }
+
+    private void sendAck(TCB tcb) {
+        ByteBuffer responseBuffer = ByteBufferPool.acquire();
+        tcb.headerTemplate.updateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+        tcb.ackSent();
+        KLog.d(TAG, tcb.ipAndPort + " ACK netToDevice ACK st = " + tcb.status);
+        offerToDevice(responseBuffer);
+    }
+
+    /**
+     * Writes in-order payload to the server. Only game API flows are inspected on the way,
+     * the rest pass through as they are.
+     *
+     * @return true if the buffer was gathered or left over, and queued on the TCB
+     */
+    private boolean forward(TCB tcb, ByteBuffer data) throws IOException {
+        FlowClass flowClass = tcb.flowClass;
+        if (flowClass == FlowClass.UNCLASSIFIED || flowClass == FlowClass.STATIC_ASSET) {
+            flowClass = FlowClassifier.classify(FlowTable.destinationAddress(tcb.key), data, flowClass);
+            if (flowClass != tcb.flowClass) {
+                KLog.d(TAG, tcb.ipAndPort + " " + flowClass);
+                tcb.setFlowClass(flowClass);
+                // Only static assets are known to be bulk, game API flows switch per request
+                tcb.setWritePolicy(flowClass == FlowClass.STATIC_ASSET
+                        ? TCB.WritePolicy.THROUGHPUT : TCB.WritePolicy.LATENCY);
             }
+        }
+        if (flowClass == FlowClass.GAME_API)
+            inspect(tcb, data);
+        return tcb.write(data);
+    }
 
-            // TODO: We don't expect out-of-order packets, but verify
-            tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + payloadSize;
-            tcb.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
-            Packet referencePacket = tcb.referencePacket;
-            referencePacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
-            KLog.d(TAG, tcb.ipAndPort + " ACK netToDevice ACK st = " + tcb.status);
+    /**
+     * Hands request payload to the game API parser.
+     */
+    private void inspect(TCB tcb, ByteBuffer data) throws IOException {
+        try {
+            int ret = 0;
+            if( tcb.kancolleClient.httpPacketStatus == httpPacket.HTTP_NULL) {
+                if (httpPacket.startsWith(data, "POST") || httpPacket.startsWith(data, "GET ")) {
+                    KLog.d(TAG, "!!GOT Client Request!! " + data.remaining());
+                    // Game API calls are small and the game waits on each, everything else is bulk
+                    tcb.setWritePolicy(FlowClassifier.isGameApiRequest(data) ? TCB.WritePolicy.LATENCY : TCB.WritePolicy.THROUGHPUT);
+                    ret = tcb.kancolleClient.processClient(httpPacket.copyRemaining(data));
+                }
+            }
+            else {
+                ret = tcb.kancolleClient.processClient(httpPacket.copyRemaining(data));
+            }
+            if(ret == 1){
+                APIqueue.offer(tcb.kancolleClient.httpPacketBuffer);
+                tcb.kancolleClient.clear();
+            }
         }
+        catch (IllegalArgumentException e){
 
-        outputQueue.offer(responseBuffer);
+        }
     }
 
-    private void sendRST(TCB tcb, int prevPayloadSize, ByteBuffer buffer) {
+    private void sendRST(TCB tcb, int prevPayloadSize) {
+        ByteBuffer buffer = ByteBufferPool.acquire();
         synchronized (tcb) {
-            tcb.referencePacket.updateTCPBuffer(buffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum + prevPayloadSize, 0);
+            tcb.headerTemplate.updateTCPBuffer(buffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum + prevPayloadSize, 0);
 
             KLog.d(TAG, tcb.ipAndPort + " RST netToDevice RST");
 
-            outputQueue.offer(buffer);
+            offerToDevice(buffer);
             TCB.closeTCB(tcb);
         }
     }
+
+    /**
+     * Queues a buffer for the device. A BLOCK ring gives up when this thread is interrupted
+     * while waiting for space, the buffer is released then.
+     */
+    private void offerToDevice(ByteBuffer buffer) {
+        if (!outputQueue.offer(buffer))
+            ByteBufferPool.release(buffer);
+    }
 }
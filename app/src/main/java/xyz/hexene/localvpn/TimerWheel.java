@@ -0,0 +1,153 @@
+package xyz.hexene.localvpn;
+
+import android.os.SystemClock;
+
+import com.socks.library.KLog;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel that reaps idle and timed-out flows, plus the coarse clock they use.
+ *
+ * Flows never move between slots on the packet path. They only stamp their activity with
+ * now(), which is a volatile read. When a flow's slot comes round, the wheel asks for its
+ * current deadline: a passed deadline expires it, otherwise it is re-hashed into the slot
+ * for the new deadline. Each flow costs O(1) per visit, and each tick only touches one slot.
+ *
+ * The clock is elapsedRealtime(), which setting the wall clock doesn't move and which keeps
+ * counting in deep sleep, so flows left idle while the phone slept expire when it wakes.
+ */
+class TimerWheel implements Runnable {
+    private static final String TAG = TimerWheel.class.getSimpleName();
+    public static final long TICK_MILLIS = 1000;
+    private static final int SLOTS = 64;
+
+    private static final TimerWheel instance = new TimerWheel();
+    private static volatile long now = SystemClock.elapsedRealtime();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayList<Task>[] slots = new ArrayList[SLOTS];
+    private final ArrayList<Task> expired = new ArrayList<>();
+    private long currentTick = now / TICK_MILLIS;
+
+    private TimerWheel() {
+        for (int i = 0; i < SLOTS; i++)
+            slots[i] = new ArrayList<>();
+    }
+
+    public static TimerWheel getInstance() {
+        return instance;
+    }
+
+    /**
+     * Milliseconds since boot, moved forward once per tick. Cheap enough for every packet.
+     */
+    public static long now() {
+        return now;
+    }
+
+    /**
+     * Puts the task in the slot for its deadline. A task sits in at most one slot: if it is
+     * in one already, it only moves when the deadline now falls before that slot comes round,
+     * a later deadline is picked up when it does.
+     */
+    public synchronized void schedule(Task task) {
+        long scheduledTick = task.getScheduledTick();
+        if (scheduledTick != 0) {
+            if (scheduledTick <= tickFor(task.getDeadline()))
+                return;
+            slots[(int) (scheduledTick % SLOTS)].remove(task);
+        }
+        insert(task, task.getDeadline());
+    }
+
+    private long tickFor(long deadline) {
+        return Math.max((deadline + TICK_MILLIS - 1) / TICK_MILLIS, currentTick + 1);
+    }
+
+    private void insert(Task task, long deadline) {
+        long tick = tickFor(deadline);
+        slots[(int) (tick % SLOTS)].add(task);
+        task.setScheduledTick(tick);
+    }
+
+    @Override
+    public void run() {
+        KLog.i(TAG, "Started");
+        // The clock stood still since the last run
+        now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            currentTick = now / TICK_MILLIS;
+        }
+        try {
+            // Keeps ticking with nothing scheduled, flows read now() before they are scheduled
+            while (!Thread.interrupted()) {
+                // Wake on the tick boundary so a slot is visited right as it falls due
+                Thread.sleep(TICK_MILLIS - SystemClock.elapsedRealtime() % TICK_MILLIS);
+                now = SystemClock.elapsedRealtime();
+                advance(now / TICK_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            KLog.i(TAG, "Stopping");
+        } finally {
+            synchronized (this) {
+                for (ArrayList<Task> slot : slots) {
+                    for (int i = 0; i < slot.size(); i++)
+                        slot.get(i).setScheduledTick(0);
+                    slot.clear();
+                }
+            }
+            KLog.i("stopped run");
+        }
+    }
+
+    private void advance(long targetTick) {
+        synchronized (this) {
+            // Catch up on every slot passed since the last tick, at most one full turn
+            long firstTick = Math.max(currentTick + 1, targetTick - SLOTS + 1);
+            currentTick = targetTick;
+            for (long tick = firstTick; tick <= targetTick; tick++) {
+                ArrayList<Task> slot = slots[(int) (tick % SLOTS)];
+                for (int i = slot.size() - 1; i >= 0; i--) {
+                    Task task = slot.get(i);
+                    slot.remove(i);
+                    task.setScheduledTick(0);
+                    if (task.isCancelled())
+                        continue;
+                    long deadline = task.getDeadline();
+                    // Never early, at most one tick late
+                    if (deadline <= tick * TICK_MILLIS) {
+                        expired.add(task);
+                    } else {
+                        // Deadline moved, or lies more than one turn ahead
+                        insert(task, deadline);
+                    }
+                }
+            }
+        }
+
+        // Outside the lock, expiring closes channels and takes flow locks
+        for (int i = 0; i < expired.size(); i++)
+            expired.get(i).expire();
+        expired.clear();
+    }
+
+    interface Task {
+        /**
+         * @return when the task is due, in now() milliseconds; may move while scheduled
+         */
+        long getDeadline();
+
+        boolean isCancelled();
+
+        void expire();
+
+        /**
+         * @return the tick of the slot the task sits in, 0 when it is in none; only the wheel
+         * reads and writes it, under its lock
+         */
+        long getScheduledTick();
+
+        void setScheduledTick(long tick);
+    }
+}
@@ -0,0 +1,94 @@
+package xyz.hexene.localvpn;
+
+import android.annotation.TargetApi;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import com.socks.library.KLog;
+
+import java.io.FileDescriptor;
+import java.nio.channels.Selector;
+
+/**
+ * Wakes a selector when the TUN device becomes readable, since its descriptor can't be
+ * registered with one. The engine arms it when it starts to wait in select() and disarms it
+ * once there is work again; poll() is level-triggered, so a packet that came in before arm()
+ * still wakes it. Arming it while it is armed costs nothing.
+ */
+@TargetApi(21)
+class TunWatcher implements Runnable {
+    private static final String TAG = TunWatcher.class.getSimpleName();
+    // Bounds how long an interrupt takes to be seen, poll() itself doesn't return for one
+    private static final int POLL_TIMEOUT_MILLIS = 1000;
+
+    private final FileDescriptor vpnFileDescriptor;
+    private final Selector selector;
+    private boolean armed;
+    private volatile boolean failed;
+
+    public TunWatcher(FileDescriptor vpnFileDescriptor, Selector selector) {
+        this.vpnFileDescriptor = vpnFileDescriptor;
+        this.selector = selector;
+    }
+
+    public synchronized void arm() {
+        if (armed)
+            return;
+        armed = true;
+        notify();
+    }
+
+    public synchronized void disarm() {
+        armed = false;
+    }
+
+    /**
+     * @return whether poll() failed and the watcher stopped, the engine has to poll itself then
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    private synchronized void awaitArmed() throws InterruptedException {
+        while (!armed)
+            wait();
+    }
+
+    /**
+     * @return whether the engine was still waiting, one readable device wakes it only once
+     */
+    private synchronized boolean fire() {
+        boolean wasArmed = armed;
+        armed = false;
+        return wasArmed;
+    }
+
+    @Override
+    public void run() {
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = vpnFileDescriptor;
+        pollfd.events = (short) OsConstants.POLLIN;
+        StructPollfd[] pollfds = {pollfd};
+        try {
+            while (!Thread.interrupted()) {
+                awaitArmed();
+                try {
+                    if (Os.poll(pollfds, POLL_TIMEOUT_MILLIS) > 0 && fire())
+                        selector.wakeup();
+                } catch (ErrnoException e) {
+                    if (e.errno != OsConstants.EINTR)
+                        throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            KLog.i(TAG, "Stopping");
+        } catch (ErrnoException e) {
+            // The engine falls back to select() timeouts, it has to wake once to notice
+            KLog.w(TAG, "poll failed: " + e.toString());
+            failed = true;
+            selector.wakeup();
+        }
+    }
+}
@@ -20,84 +20,62 @@ import com.socks.library.KLog;
 
 import java.io.IOException;
 import java.nio.channels.DatagramChannel;
-import java.util.Iterator;
-import java.util.Map;
 
 
 /**
  * Transmission Control Block
  */
-public class UDB {
+public class UDB implements TimerWheel.Task {
     private static final int MAX_CACHE_SIZE = 500;
     private static final long MAX_WAIT_DATA_TIME = 60 * 1000;
+    public final long key;
+    // Only for logging, lookups go through key
     public String ipAndPort;
     public DatagramChannel channel;
     public Packet referencePacket;
     public long readlen;
     public long writelen;
     public int curNum;
-    private long lastDataExTime;
-    private static LRUCache<String, UDB> udbCache =
-            new LRUCache<>(MAX_CACHE_SIZE, new LRUCache.CleanupCallback<String, UDB>() {
-                @Override
-                public void cleanup(Map.Entry<String, UDB> eldest) {
-                    KLog.d(eldest.getValue().curNum + " cleanup = " + eldest.getKey() + " readLen = " + eldest.getValue().readlen + " writelen = " + eldest.getValue().writelen);
-                    eldest.getValue().closeChannel();
-                }
-
-                public boolean canCleanup(Map.Entry<String, UDB> eldest) {
-                    boolean ret = false;
-                    if (System.currentTimeMillis() - eldest.getValue().lastDataExTime > MAX_WAIT_DATA_TIME) {
-                        ret = true;
-                        KLog.d(eldest.getKey() + " canCleanup lastDataExTime > " + MAX_WAIT_DATA_TIME);
-                    }
-
-                    return ret;
-                }
-            });
-
-    public UDB(String ipAndPort, DatagramChannel channel, Packet referencePacket) {
+    private volatile long lastDataExTime;
+    private volatile boolean closed;
+    // Guarded by the TimerWheel
+    private long scheduledTick;
+    private static FlowTable<UDB> udbCache = new FlowTable<>(MAX_CACHE_SIZE);
+
+    public UDB(long key, String ipAndPort, DatagramChannel channel, Packet referencePacket) {
+        this.key = key;
         this.ipAndPort = ipAndPort;
         this.channel = channel;
         this.referencePacket = referencePacket;
 
-        this.lastDataExTime = System.currentTimeMillis();
+        this.lastDataExTime = TimerWheel.now();
     }
 
-    public static UDB getUDB(String ipAndPort) {
-        synchronized (udbCache) {
-            //KLog.d("key = " + ipAndPort);
-            return udbCache.get(ipAndPort);
-        }
+    public static UDB getUDB(long key) {
+        return udbCache.get(key);
     }
 
-    public static void putUDB(String ipAndPort, UDB udb) {
-        synchronized (udbCache) {
-            udb.curNum = udbCache.size();
-            KLog.d(udbCache.size() + " key = " + ipAndPort);
-            udbCache.put(ipAndPort, udb);
-        }
+    public static void putUDB(UDB udb) {
+        udb.curNum = udbCache.size();
+        KLog.d(udb.curNum + " key = " + udb.ipAndPort);
+        udbCache.put(udb.key, udb);
+        TimerWheel.getInstance().schedule(udb);
     }
 
     public static void closeUDB(UDB udb) {
         KLog.d(udb.curNum + " key = " + udb.ipAndPort + " readLen = " + udb.readlen + " writelen = " + udb.writelen);
+        udb.closed = true;
         udb.closeChannel();
-        synchronized (udbCache) {
-            udbCache.remove(udb.ipAndPort);
-        }
+        udbCache.remove(udb.key, udb);
     }
 
     public static void closeAll() {
         KLog.d("closeAll");
-        synchronized (udbCache) {
-            int index = 0;
-            Iterator<Map.Entry<String, UDB>> it = udbCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, UDB> item = it.next();
-                KLog.d("close " + ++index + ": " + item.getKey() + " readLen = " + item.getValue().readlen + " writelen = " + item.getValue().writelen);
-                item.getValue().closeChannel();
-                it.remove();
-            }
+        int index = 0;
+        for (UDB udb : udbCache.clear()) {
+            KLog.d("close " + ++index + ": " + udb.ipAndPort + " readLen = " + udb.readlen + " writelen = " + udb.writelen);
+            udb.closed = true;
+            udb.closeChannel();
         }
     }
 
@@ -110,6 +88,36 @@ public class UDB {
     }
 
     public void refreshDataEXTime() {
-        this.lastDataExTime = System.currentTimeMillis();
+        this.lastDataExTime = TimerWheel.now();
+    }
+
+    @Override
+    public long getDeadline() {
+        return lastDataExTime + MAX_WAIT_DATA_TIME;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return closed;
+    }
+
+    @Override
+    public long getScheduledTick() {
+        return scheduledTick;
+    }
+
+    @Override
+    public void setScheduledTick(long tick) {
+        scheduledTick = tick;
+    }
+
+    @Override
+    public void expire() {
+        synchronized (this) {
+            if (closed)
+                return;
+            KLog.d(curNum + " expire = " + ipAndPort + " readLen = " + readlen + " writelen = " + writelen);
+            closeUDB(this);
+        }
     }
 }
@@ -26,17 +26,17 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 class UDPInput implements Runnable {
     private static final String TAG = UDPInput.class.getSimpleName();
     private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE;
 
     private Selector selector;
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
+    private Queue<ByteBuffer> outputQueue;
 
-    public UDPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector) {
+    public UDPInput(Queue<ByteBuffer> outputQueue, Selector selector) {
         this.outputQueue = outputQueue;
         this.selector = selector;
     }
@@ -73,6 +73,7 @@ class UDPInput implements Runnable {
                             } catch (IOException e) {
                                 KLog.e(TAG, udb.ipAndPort + " read error: " + e.toString());
                                 UDB.closeUDB(udb);
+                                ByteBufferPool.release(receiveBuffer);
                                 continue;
                             }
                             udb.refreshDataEXTime();
@@ -84,7 +85,8 @@ class UDPInput implements Runnable {
                         }
 
                         //KLog.d(TAG, udb.ipAndPort + " networkToDeviceQueue UDP readBytes = " + readBytes);
-                        outputQueue.offer(receiveBuffer);
+                        if (!outputQueue.offer(receiveBuffer))
+                            ByteBufferPool.release(receiveBuffer);
                     }
                 }
             }
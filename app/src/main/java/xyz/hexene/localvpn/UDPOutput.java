@@ -21,22 +21,22 @@ import android.util.Log;
 import com.socks.library.KLog;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Queue;
 
 class UDPOutput implements Runnable {
     private static final String TAG = UDPOutput.class.getSimpleName();
 
     private LocalVPNService vpnService;
-    private ConcurrentLinkedQueue<Packet> inputQueue;
+    private Queue<ByteBuffer> inputQueue;
     private Selector selector;
+    private final Packet currentPacket = new Packet();
 
-    public UDPOutput(ConcurrentLinkedQueue<Packet> inputQueue, Selector selector, LocalVPNService vpnService) {
+    public UDPOutput(Queue<ByteBuffer> inputQueue, Selector selector, LocalVPNService vpnService) {
         this.inputQueue = inputQueue;
         this.selector = selector;
         this.vpnService = vpnService;
@@ -46,15 +46,15 @@ class UDPOutput implements Runnable {
     public void run() {
         KLog.i(TAG, "Started");
         try {
-            Packet currentPacket;
+            ByteBuffer payloadBuffer;
             UDB udb;
             DatagramChannel outputChannel;
             Thread currentThread = Thread.currentThread();
             while (true) {
                 // TODO: Block when not connected
                 do {
-                    currentPacket = inputQueue.poll();
-                    if (currentPacket != null)
+                    payloadBuffer = inputQueue.poll();
+                    if (payloadBuffer != null)
                         break;
                     Thread.sleep(10);
                 } while (!currentThread.isInterrupted());
@@ -64,18 +64,18 @@ class UDPOutput implements Runnable {
                     break;
                 }
 
-                ByteBuffer payloadBuffer = currentPacket.backingBuffer;
-                currentPacket.backingBuffer = null;
+                currentPacket.wrap(payloadBuffer);
 
-                InetAddress destinationAddress = currentPacket.ip4Header.destinationAddress;
-                int destinationPort = currentPacket.udpHeader.destinationPort;
-                int sourcePort = currentPacket.udpHeader.sourcePort;
+                int destinationAddress = currentPacket.ip4Header.getDestinationAddress();
+                int destinationPort = currentPacket.udpHeader.getDestinationPort();
+                int sourcePort = currentPacket.udpHeader.getSourcePort();
 
-                String ipAndPort = destinationAddress.getHostAddress() + ":" + destinationPort + ":" + sourcePort;
-                //KLog.i(TAG, "ipAndPort = " + ipAndPort);
+                long key = FlowTable.key(destinationAddress, destinationPort, sourcePort);
 
-                udb = UDB.getUDB(ipAndPort);
+                udb = UDB.getUDB(key);
                 if (udb == null) {
+                    String ipAndPort = Packet.addressToString(destinationAddress) + ":" + destinationPort + ":" + sourcePort;
+                    //KLog.i(TAG, "ipAndPort = " + ipAndPort);
                     outputChannel = DatagramChannel.open();
                     vpnService.protect(outputChannel.socket());
 
@@ -83,7 +83,7 @@ class UDPOutput implements Runnable {
                         outputChannel.socket().setReceiveBufferSize(65535);
                         outputChannel.socket().setSendBufferSize(65535);
 
-                        outputChannel.connect(new InetSocketAddress(destinationAddress, destinationPort));
+                        outputChannel.connect(new InetSocketAddress(Packet.addressToInetAddress(destinationAddress), destinationPort));
                     } catch (IOException e) {
                         KLog.e(TAG, ipAndPort + " Connection error: " + e.toString());
                         closeChannel(outputChannel);
@@ -98,10 +98,11 @@ class UDPOutput implements Runnable {
                         continue;
                     }
 
-                    currentPacket.swapSourceAndDestination();
+                    Packet referencePacket = currentPacket.duplicateHeaders();
+                    referencePacket.swapSourceAndDestination();
 
-                    udb = new UDB(ipAndPort, outputChannel, currentPacket);
-                    UDB.putUDB(ipAndPort, udb);
+                    udb = new UDB(key, ipAndPort, outputChannel, referencePacket);
+                    UDB.putUDB(udb);
 
                     outputChannel.configureBlocking(false);
                     selector.wakeup();
@@ -114,7 +115,7 @@ class UDPOutput implements Runnable {
                         while (payloadBuffer.hasRemaining())
                             outputChannel.write(payloadBuffer);
                     } catch (IOException e) {
-                        KLog.e(TAG, ipAndPort + " write error: " + e.toString());
+                        KLog.e(TAG, udb.ipAndPort + " write error: " + e.toString());
 
                         ByteBufferPool.release(payloadBuffer);
                         UDB.closeUDB(udb);
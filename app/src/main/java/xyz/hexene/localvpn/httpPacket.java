@@ -7,6 +7,7 @@ import com.socks.library.KLog;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
@@ -30,6 +31,26 @@ class httpPacket {
     private int curChuckLength = -1;
     private int sumChunckLength = -1;
 
+    /**
+     * Checks the bytes at the buffer's position without moving it.
+     */
+    static boolean startsWith(ByteBuffer buffer, String prefix) {
+        if (buffer.remaining() < prefix.length())
+            return false;
+        int position = buffer.position();
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(position + i) != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    static byte[] copyRemaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
     int processClient(byte[] packet){
         if(!processHttp(packet))
             return 0;
@@ -0,0 +1,78 @@
+package xyz.hexene.localvpn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBufferPoolTest {
+    private static final int SLAB = 256;
+
+    @Before
+    public void setUp() {
+        ByteBufferPool.clear();
+    }
+
+    /**
+     * Reserved memory in K, as stats() reports it.
+     */
+    private static long reservedK() {
+        Matcher matcher = Pattern.compile("reserved = (\\d+)K").matcher(ByteBufferPool.stats());
+        assertTrue(matcher.find());
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private static int buffersPerSlab() {
+        return SLAB * 1024 / ByteBufferPool.acquire().capacity();
+    }
+
+    @Test
+    public void releasedBufferIsReusedFirst() {
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        assertTrue(buffer.isDirect());
+        buffer.put((byte) 1);
+        ByteBufferPool.release(buffer);
+        ByteBuffer again = ByteBufferPool.acquire();
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+    }
+
+    @Test
+    public void memoryIsCountedPerSlab() {
+        ByteBufferPool.acquire();
+        assertEquals(SLAB, reservedK());
+    }
+
+    @Test
+    public void trimFreesOnlyWholeSlabsIdleForAnInterval() {
+        int perSlab = buffersPerSlab();
+        ByteBufferPool.clear();
+        // Three slabs, handed out one after the other
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 3 * perSlab; i++)
+            buffers.add(ByteBufferPool.acquire());
+        assertEquals(3 * SLAB, reservedK());
+
+        // The first slab keeps a buffer out, the last one partly sits in this thread's cache
+        for (int i = 1; i < buffers.size(); i++)
+            ByteBufferPool.release(buffers.get(i));
+        ByteBufferPool.trim();
+        assertEquals("not idle for a whole interval yet", 3 * SLAB, reservedK());
+        ByteBufferPool.trim();
+        assertEquals(2 * SLAB, reservedK());
+
+        // Taking buffers again draws on the fullest slab, the trimmed one is not back
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        assertTrue(buffer.isDirect());
+        assertEquals(2 * SLAB, reservedK());
+        ByteBufferPool.release(buffer);
+        ByteBufferPool.release(buffers.get(0));
+    }
+}
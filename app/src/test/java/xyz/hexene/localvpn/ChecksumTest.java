@@ -0,0 +1,103 @@
+package xyz.hexene.localvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumTest {
+    private final Random random = new Random(42);
+
+    /**
+     * The loop Packet.updateTCPChecksum used before Checksum, one short at a time through a duplicate.
+     */
+    static int referenceSum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.order(ByteOrder.BIG_ENDIAN);
+        duplicate.position(offset);
+        int sum = 0;
+        while (length > 1) {
+            sum += duplicate.getShort() & 0xFFFF;
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+            length -= 2;
+        }
+        if (length > 0)
+            sum += (duplicate.get() & 0xFF) << 8;
+        return Checksum.fold(sum);
+    }
+
+    private ByteBuffer buffer(boolean direct, ByteOrder order, int size) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        buffer.put(bytes).clear();
+        return buffer.order(order);
+    }
+
+    private void checkAll(boolean direct, ByteOrder order) {
+        ByteBuffer buffer = buffer(direct, order, 256);
+        for (int offset = 0; offset < 16; offset++) {
+            for (int length = 0; length < 200; length++)
+                assertEquals("offset " + offset + " length " + length,
+                        referenceSum(buffer, offset, length), Checksum.sum(buffer, offset, length));
+        }
+
+        buffer = buffer(direct, order, 65536);
+        for (int i = 0; i < 200; i++) {
+            int offset = random.nextInt(512);
+            int length = random.nextInt(65536 - offset);
+            assertEquals("offset " + offset + " length " + length,
+                    referenceSum(buffer, offset, length), Checksum.sum(buffer, offset, length));
+        }
+    }
+
+    @Test
+    public void heapBigEndian() {
+        checkAll(false, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Test
+    public void heapLittleEndian() {
+        checkAll(false, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void directBigEndian() {
+        checkAll(true, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Test
+    public void directLittleEndian() {
+        checkAll(true, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void allOnesDoesNotOverflow() {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        for (int i = 0; i < buffer.capacity(); i++)
+            buffer.put(i, (byte) 0xFF);
+        assertEquals(referenceSum(buffer, 1, 65535), Checksum.sum(buffer, 1, 65535));
+        assertEquals(0xFFFF, Checksum.sum(buffer, 0, 65536));
+    }
+
+    @Test
+    public void positionIsUntouched() {
+        ByteBuffer buffer = buffer(true, ByteOrder.BIG_ENDIAN, 64);
+        buffer.position(7);
+        Checksum.sum(buffer, 3, 50);
+        assertEquals(7, buffer.position());
+    }
+
+    @Test
+    public void updateMatchesRecomputation() {
+        ByteBuffer buffer = buffer(false, ByteOrder.BIG_ENDIAN, 40);
+        int checksum = ~Checksum.sum(buffer, 0, 40) & 0xFFFF;
+        int oldWord = buffer.getShort(12) & 0xFFFF;
+        int newWord = 0xBEEF;
+        buffer.putShort(12, (short) newWord);
+        assertEquals(~Checksum.sum(buffer, 0, 40) & 0xFFFF, Checksum.update(checksum, oldWord, newWord));
+    }
+}
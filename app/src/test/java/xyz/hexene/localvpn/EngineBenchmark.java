@@ -0,0 +1,179 @@
+package xyz.hexene.localvpn;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download throughput of SingleThreadEngine against the threaded pipeline, VPNRunnable and
+ * VPNOutput around one TCP reactor, as LocalVPNService starts them. A connected pair of
+ * loopback UDP sockets stands in for the TUN device: like it, each read or write is one
+ * packet. The device end ACKs every segment.
+ *
+ * Run with main([flows [seconds]]). The descriptor is taken out of a DatagramChannel by
+ * reflection, on Java 9 and later that needs --add-opens java.base/sun.nio.ch=ALL-UNNAMED.
+ */
+public class EngineBenchmark {
+    private static final int NETWORK_TO_DEVICE_CAPACITY = 1024;
+    private static final int DEVICE_TO_NETWORK_CAPACITY = 512;
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final long MAX_PARK_MILLIS = 10;
+
+    private final DatagramChannel tun;
+    private final DatagramChannel device;
+    private final Selector deviceSelector;
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<Selector> selectors = new ArrayList<>();
+    private final List<RingBuffer<ByteBuffer>> rings = new ArrayList<>();
+    private final LoopbackDownload download;
+
+    private EngineBenchmark(boolean singleThread, int flows) throws Exception {
+        tun = DatagramChannel.open();
+        device = DatagramChannel.open();
+        for (DatagramChannel channel : new DatagramChannel[]{tun, device}) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+        tun.connect(device.getLocalAddress());
+        device.connect(tun.getLocalAddress());
+        device.configureBlocking(false);
+        deviceSelector = Selector.open();
+        device.register(deviceSelector, SelectionKey.OP_READ);
+
+        FileDescriptor tunDescriptor = descriptor(tun);
+        LinkedBlockingQueue<byte[]> apiQueue = new LinkedBlockingQueue<>();
+        Selector selector = Selector.open();
+        selectors.add(selector);
+        SelectorCommandQueue selectorCommands;
+        if (singleThread) {
+            // Reads that return at once, as the service sets up the interface for the engine
+            tun.configureBlocking(false);
+            SingleThreadEngine engine = new SingleThreadEngine(tunDescriptor, selector, MAX_PARK_MILLIS, apiQueue, null);
+            Field field = SingleThreadEngine.class.getDeclaredField("selectorCommands");
+            field.setAccessible(true);
+            selectorCommands = (SelectorCommandQueue) field.get(engine);
+            threads.add(new Thread(engine, "engine"));
+        } else {
+            selectorCommands = new SelectorCommandQueue(selector);
+            RingBuffer<ByteBuffer> networkToDeviceQueue = new RingBuffer<>(NETWORK_TO_DEVICE_CAPACITY, true,
+                    RingBuffer.Overflow.BLOCK, RingBuffer.Wait.PARK);
+            RingBuffer<ByteBuffer> deviceToNetworkTCPQueue = new RingBuffer<>(DEVICE_TO_NETWORK_CAPACITY, false,
+                    RingBuffer.Overflow.DROP, RingBuffer.Wait.PARK);
+            RingBuffer<ByteBuffer> deviceToNetworkUDPQueue = new RingBuffer<>(DEVICE_TO_NETWORK_CAPACITY, false,
+                    RingBuffer.Overflow.DROP, RingBuffer.Wait.PARK);
+            Collections.addAll(rings, networkToDeviceQueue, deviceToNetworkTCPQueue, deviceToNetworkUDPQueue);
+            threads.add(new Thread(new TCPInput(networkToDeviceQueue, apiQueue, selectorCommands), "TCPInput"));
+            threads.add(new Thread(new TCPOutput(deviceToNetworkTCPQueue, networkToDeviceQueue, apiQueue,
+                    selectorCommands, null), "TCPOutput"));
+            threads.add(new Thread(create("VPNRunnable", new FileInputStream(tunDescriptor).getChannel(),
+                    IdleStrategy.backoff(MAX_PARK_MILLIS), deviceToNetworkUDPQueue,
+                    Collections.singletonList(deviceToNetworkTCPQueue)), "VPNRunnable"));
+            threads.add(new Thread(create("VPNOutput", tunDescriptor, networkToDeviceQueue), "VPNOutput"));
+        }
+
+        download = new LoopbackDownload(flows);
+        for (int i = 0; i < flows; i++) {
+            TCB.putTCB(TcpFixture.establish(LoopbackDownload.FIRST_DEVICE_PORT + i, download.channels.get(i),
+                    selectorCommands));
+        }
+        threads.add(new Thread(download, "servers"));
+    }
+
+    private static FileDescriptor descriptor(DatagramChannel channel) throws Exception {
+        Field field = channel.getClass().getDeclaredField("fd");
+        field.setAccessible(true);
+        return (FileDescriptor) field.get(channel);
+    }
+
+    /**
+     * The threaded pipeline's TUN threads are private to LocalVPNService.
+     */
+    private static Runnable create(String name, Object... args) throws Exception {
+        Class<?> type = Class.forName(LocalVPNService.class.getName() + "$" + name);
+        Constructor<?> constructor = type.getDeclaredConstructors()[0];
+        constructor.setAccessible(true);
+        return (Runnable) constructor.newInstance(args);
+    }
+
+    /**
+     * Plays the device for the given time.
+     *
+     * @return payload bytes received
+     */
+    private long device(long nanos) throws IOException {
+        long start = download.bytes;
+        long deadline = System.nanoTime() + nanos;
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        while (System.nanoTime() < deadline) {
+            if (device.read(buffer) <= 0) {
+                deviceSelector.select(10);
+                deviceSelector.selectedKeys().clear();
+                continue;
+            }
+            buffer.flip();
+            ByteBuffer ack = download.acknowledge(buffer);
+            buffer = ByteBufferPool.acquire();
+            if (ack != null) {
+                device.write(ack);
+                ByteBufferPool.release(ack);
+            }
+        }
+        ByteBufferPool.release(buffer);
+        return download.bytes - start;
+    }
+
+    private void close() throws Exception {
+        for (Thread thread : threads)
+            thread.interrupt();
+        // Interrupts don't reach a thread blocked in read() on a socket, closing it does
+        LocalVPNService.closeResources(tun);
+        for (Thread thread : threads)
+            thread.join();
+        for (Selector selector : selectors)
+            selector.close();
+        LocalVPNService.closeResources(device, deviceSelector);
+        download.close();
+        TCB.closeAll();
+        for (RingBuffer<ByteBuffer> ring : rings) {
+            ByteBuffer buffer;
+            while ((buffer = ring.poll()) != null)
+                ByteBufferPool.release(buffer);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int flows = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " CPUs, " + flows + " flows");
+        for (boolean singleThread : new boolean[]{false, true}) {
+            EngineBenchmark benchmark = new EngineBenchmark(singleThread, flows);
+            for (Thread thread : benchmark.threads)
+                thread.start();
+            benchmark.device(TimeUnit.SECONDS.toNanos(1));
+
+            long cpu = ReactorScalingBenchmark.processCpuNanos();
+            long start = System.nanoTime();
+            long bytes = benchmark.device(TimeUnit.SECONDS.toNanos(seconds));
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            double megabytes = bytes / 1e6;
+            System.out.printf("%s: %.1f MB/s, %.2f CPU ms/MB%n", singleThread ? "single thread" : "threaded",
+                    megabytes / elapsed, (ReactorScalingBenchmark.processCpuNanos() - cpu) / 1e6 / megabytes);
+            benchmark.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package xyz.hexene.localvpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FlowTable against the synchronized, access-ordered LinkedHashMap TCB used before, with the
+ * two access patterns running at once: TCPOutput looks up a flow per packet and opens one
+ * every OPEN_EVERY packets, TCPInput looks up flows and closes them. Run with main().
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlowTableBenchmark {
+    private static final int FLOWS = 256;
+    private static final int OPEN_EVERY = 64;
+
+    private static long key(int i) {
+        return FlowTable.key(0x0A000000 + i, 80, 10000 + i);
+    }
+
+    @State(Scope.Group)
+    public static class Tables {
+        final Object[] values = new Object[FLOWS];
+        final FlowTable<Object> flowTable = new FlowTable<>(FLOWS);
+        final LinkedHashMap<Long, Object> lruCache = new LinkedHashMap<>(FLOWS + 1, 1, true);
+
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < FLOWS; i++) {
+                values[i] = new Object();
+                flowTable.put(key(i), values[i]);
+                lruCache.put(key(i), values[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int advance() {
+            next = (next + 1) % FLOWS;
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Group("flowTable")
+    @GroupThreads(1)
+    public Object flowTableOutput(Tables tables, Cursor cursor) {
+        int i = cursor.advance();
+        if (i % OPEN_EVERY == 0)
+            return tables.flowTable.put(key(i), tables.values[i]);
+        return tables.flowTable.get(key(i));
+    }
+
+    @Benchmark
+    @Group("flowTable")
+    @GroupThreads(1)
+    public Object flowTableInput(Tables tables, Cursor cursor) {
+        int i = cursor.advance();
+        if (i % OPEN_EVERY == OPEN_EVERY / 2)
+            return tables.flowTable.remove(key(i), tables.values[i]);
+        return tables.flowTable.get(key(i));
+    }
+
+    @Benchmark
+    @Group("lruCache")
+    @GroupThreads(1)
+    public Object lruCacheOutput(Tables tables, Cursor cursor) {
+        int i = cursor.advance();
+        synchronized (tables.lruCache) {
+            if (i % OPEN_EVERY == 0)
+                return tables.lruCache.put(key(i), tables.values[i]);
+            return tables.lruCache.get(key(i));
+        }
+    }
+
+    @Benchmark
+    @Group("lruCache")
+    @GroupThreads(1)
+    public Object lruCacheInput(Tables tables, Cursor cursor) {
+        int i = cursor.advance();
+        synchronized (tables.lruCache) {
+            if (i % OPEN_EVERY == OPEN_EVERY / 2)
+                return tables.lruCache.remove(key(i));
+            return tables.lruCache.get(key(i));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FlowTableBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,138 @@
+package xyz.hexene.localvpn;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FlowTableTest {
+    // remove() compares values by identity, so every test boxes each value once
+    private static final Integer[] VALUES = new Integer[1100];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++)
+            VALUES[i] = new Integer(i);
+    }
+
+    private static long key(int i) {
+        return FlowTable.key(0x0A000000 + i, 80, 10000 + (i & 0x3FFF));
+    }
+
+    @Test
+    public void putGetReplace() {
+        FlowTable<String> table = new FlowTable<>(16);
+        assertNull(table.put(key(1), "a"));
+        assertEquals("a", table.get(key(1)));
+        assertEquals("a", table.put(key(1), "b"));
+        assertEquals("b", table.get(key(1)));
+        assertNull(table.get(key(2)));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void removeOnlyMatchingValue() {
+        FlowTable<String> table = new FlowTable<>(16);
+        String older = "older";
+        String newer = "newer";
+        table.put(key(1), older);
+        table.put(key(1), newer);
+        assertFalse(table.remove(key(1), older));
+        assertSame(newer, table.get(key(1)));
+        assertTrue(table.remove(key(1), newer));
+        assertNull(table.get(key(1)));
+        assertFalse(table.remove(key(1), newer));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void tombstonesKeepProbeChains() {
+        // Everything in one small table, so the keys share probe chains
+        FlowTable<Long> table = new FlowTable<>(1);
+        for (int i = 0; i < 64; i++)
+            table.put(key(i), (long) i);
+        for (int i = 0; i < 64; i += 2)
+            assertTrue(table.remove(key(i), (Long) (long) i));
+        for (int i = 0; i < 64; i++) {
+            if (i % 2 == 0)
+                assertNull(table.get(key(i)));
+            else
+                assertEquals((Long) (long) i, table.get(key(i)));
+        }
+        // Removed slots are reused without duplicating keys that are still further down a chain
+        for (int i = 1; i < 64; i += 2)
+            assertEquals((Long) (long) i, table.put(key(i), (long) -i));
+        assertEquals(32, table.size());
+    }
+
+    @Test
+    public void churnRebuildsSegments() {
+        FlowTable<Integer> table = new FlowTable<>(16);
+        HashSet<Integer> live = new HashSet<>();
+        for (int round = 0; round < 100000; round++) {
+            int i = round % 500;
+            if (live.remove(i)) {
+                assertTrue(table.remove(key(i), VALUES[i]));
+            } else {
+                assertNull(table.put(key(i), VALUES[i]));
+                live.add(i);
+            }
+        }
+        assertEquals(live.size(), table.size());
+        for (int i = 0; i < 500; i++)
+            assertEquals(live.contains(i) ? (Integer) i : null, table.get(key(i)));
+    }
+
+    @Test
+    public void clearReturnsEveryValue() {
+        FlowTable<Integer> table = new FlowTable<>(16);
+        for (int i = 0; i < 300; i++)
+            table.put(key(i), VALUES[i]);
+        assertTrue(table.remove(key(7), VALUES[7]));
+        List<Integer> removed = table.clear();
+        assertEquals(299, removed.size());
+        assertFalse(removed.contains(VALUES[7]));
+        assertEquals(0, table.size());
+        assertNull(table.get(key(1)));
+    }
+
+    @Test
+    public void readersNeverMissStableKeysDuringRebuilds() throws Exception {
+        final FlowTable<Integer> table = new FlowTable<>(4);
+        for (int i = 0; i < 100; i++)
+            table.put(key(i), VALUES[i]);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    for (int i = 0; i < 100; i++) {
+                        Integer value = table.get(key(i));
+                        if (value == null || value != i)
+                            failure.compareAndSet(null, "key " + i + " read " + value);
+                    }
+                }
+            }
+        });
+        reader.start();
+        // Churns other keys, growing and rebuilding the segments under the reader
+        for (int round = 0; round < 200; round++) {
+            for (int i = 100; i < 1100; i++)
+                table.put(key(i), VALUES[i]);
+            for (int i = 100; i < 1100; i++)
+                assertTrue(table.remove(key(i), VALUES[i]));
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(100, table.size());
+    }
+}
@@ -0,0 +1,98 @@
+package xyz.hexene.localvpn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Both ends of a download for the benchmarks: loopback servers that write as fast as their
+ * sockets take it, run() on a thread of its own, and the device's side, which counts the
+ * payload of each segment and answers it with an ACK.
+ */
+class LoopbackDownload implements Runnable {
+    static final int FIRST_DEVICE_PORT = 40000;
+
+    // Our ends of the connections, a flow's device port is FIRST_DEVICE_PORT + index
+    final List<SocketChannel> channels = new ArrayList<>();
+    private final Selector serverSelector;
+    // Highest acknowledgement sent per flow
+    private final long[] deviceAcks;
+    long bytes;
+
+    LoopbackDownload(int flows) throws IOException {
+        serverSelector = Selector.open();
+        deviceAcks = new long[flows];
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        for (int i = 0; i < flows; i++) {
+            SocketChannel channel = SocketChannel.open(listener.socket().getLocalSocketAddress());
+            SocketChannel server = listener.accept();
+            channel.configureBlocking(false);
+            server.configureBlocking(false);
+            server.register(serverSelector, SelectionKey.OP_WRITE);
+            channels.add(channel);
+            deviceAcks[i] = TcpFixture.OUR_SEQUENCE;
+        }
+        listener.close();
+    }
+
+    static long key(int devicePort) {
+        return FlowTable.key(TcpFixture.SERVER_ADDRESS, TcpFixture.SERVER_PORT, devicePort);
+    }
+
+    /**
+     * Writes to every server socket that has room, until interrupted.
+     */
+    @Override
+    public void run() {
+        ByteBuffer data = ByteBuffer.allocateDirect(65536);
+        try {
+            while (!Thread.interrupted()) {
+                serverSelector.select();
+                Iterator<SelectionKey> keys = serverSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    data.clear();
+                    ((SocketChannel) key.channel()).write(data);
+                }
+            }
+        } catch (IOException e) {
+            // Closed under us at the end of the run
+        }
+    }
+
+    /**
+     * Takes a segment sent to the device and releases it.
+     *
+     * @return the device's ACK for it, or null if it carried no payload
+     */
+    ByteBuffer acknowledge(ByteBuffer segment) {
+        int tcpHeaderLength = (segment.get(32) >> 4 & 0xF) * 4;
+        int payload = (segment.getShort(2) & 0xFFFF) - Packet.IP4_HEADER_SIZE - tcpHeaderLength;
+        int devicePort = segment.getShort(22) & 0xFFFF;
+        long end = (segment.getInt(24) & 0xFFFFFFFFL) + payload;
+        ByteBufferPool.release(segment);
+        if (payload <= 0)
+            return null;
+        bytes += payload;
+
+        int flow = devicePort - FIRST_DEVICE_PORT;
+        if (TCB.sequenceAfter(end, deviceAcks[flow]))
+            deviceAcks[flow] = end;
+        return TcpFixture.packet(devicePort, TcpFixture.DEVICE_SEQUENCE, deviceAcks[flow], Packet.TCPHeader.ACK, 0);
+    }
+
+    void close() throws IOException {
+        for (SelectionKey key : serverSelector.keys())
+            key.channel().close();
+        serverSelector.close();
+    }
+}
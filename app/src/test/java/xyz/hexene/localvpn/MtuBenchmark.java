@@ -0,0 +1,152 @@
+package xyz.hexene.localvpn;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the download path costs per MB at each TUN MTU, on one thread: a socket read scattered
+ * into segments of MTU - 40 bytes as TCPInput does it, the header and checksum of each, and one
+ * write to the TUN device and one read on the device's side per segment. A connected pair of
+ * loopback UDP sockets stands in for the TUN device, which caps the MTU at 65507 where the app
+ * allows 65535. Prints bytes per socket read and per TUN write, and the thread's CPU time per
+ * MB, the same figures IoStats logs on a device.
+ *
+ * LocalVPNService.MTU is a constant, so the path is rebuilt here around TCPHeaderTemplate
+ * rather than run through TCPInput. Run with main([seconds [mtu...]]).
+ */
+public class MtuBenchmark {
+    private static final int HEADER_SIZE = TCPHeaderTemplate.SIZE;
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final int mss;
+    private final int maxReadSize;
+    private final ByteBuffer[] segments;
+    private final ByteBuffer received;
+    private final TCPHeaderTemplate headerTemplate;
+    private final SocketChannel channel;
+    private final SocketChannel server;
+    private final DatagramChannel tun;
+    private final DatagramChannel device;
+
+    private long sequenceNum;
+    private long socketReads, socketBytes, tunWrites, tunBytes;
+
+    private MtuBenchmark(int mtu) throws Exception {
+        mss = mtu - HEADER_SIZE;
+        // As many as one TCPInput read of Math.max(64K, MSS) fills
+        maxReadSize = Math.max(64 * 1024, mss);
+        segments = new ByteBuffer[(maxReadSize + mss - 1) / mss];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = ByteBuffer.allocateDirect(mtu);
+        received = ByteBuffer.allocateDirect(mtu);
+        ByteBuffer syn = TcpFixture.syn();
+        headerTemplate = new TCPHeaderTemplate(new Packet().wrap(syn));
+        ByteBufferPool.release(syn);
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        channel = SocketChannel.open(listener.socket().getLocalSocketAddress());
+        server = listener.accept();
+        listener.close();
+
+        tun = DatagramChannel.open();
+        device = DatagramChannel.open();
+        for (DatagramChannel datagramChannel : new DatagramChannel[]{tun, device}) {
+            datagramChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+            datagramChannel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+            datagramChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+        tun.connect(device.getLocalAddress());
+        device.connect(tun.getLocalAddress());
+    }
+
+    /**
+     * The server writes on a thread of its own, until its socket is closed.
+     */
+    private Thread startServer() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer data = ByteBuffer.allocateDirect(65536);
+                try {
+                    while (true) {
+                        data.clear();
+                        server.write(data);
+                    }
+                } catch (Exception e) {
+                    // Closed at the end of the run
+                }
+            }
+        }, "server");
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * One socket read and the segments it filled.
+     */
+    private void transfer() throws Exception {
+        int room = maxReadSize;
+        for (ByteBuffer segment : segments) {
+            segment.limit(HEADER_SIZE + Math.min(mss, room)).position(HEADER_SIZE);
+            room -= mss;
+        }
+        long read = channel.read(segments);
+        socketReads++;
+        socketBytes += read;
+        for (int i = 0; i < segments.length && segments[i].position() > HEADER_SIZE; i++) {
+            ByteBuffer segment = segments[i];
+            int payloadSize = segment.position() - HEADER_SIZE;
+            headerTemplate.updateTCPBuffer(segment, (byte) Packet.TCPHeader.ACK, sequenceNum, 0, payloadSize);
+            sequenceNum += payloadSize;
+            segment.limit(HEADER_SIZE + payloadSize).position(0);
+            tunBytes += tun.write(segment);
+            tunWrites++;
+            received.clear();
+            device.read(received);
+        }
+    }
+
+    private void close() throws Exception {
+        LocalVPNService.closeResources(server, channel, tun, device);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int[] mtus = {1500, 4000, 9000, 16000, 32000, 65000};
+        if (args.length > 1) {
+            mtus = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                mtus[i - 1] = Integer.parseInt(args[i]);
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int mtu : mtus) {
+            MtuBenchmark benchmark = new MtuBenchmark(mtu);
+            Thread server = benchmark.startServer();
+            long warmup = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (System.nanoTime() < warmup)
+                benchmark.transfer();
+            benchmark.socketReads = benchmark.socketBytes = benchmark.tunWrites = benchmark.tunBytes = 0;
+
+            long cpu = threads.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < deadline)
+                benchmark.transfer();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            double megabytes = benchmark.socketBytes / 1e6;
+            System.out.printf("mtu %5d: %6.1f MB/s, %6d bytes/socket read, %5d bytes/TUN write, %.2f CPU ms/MB%n",
+                    mtu, megabytes / elapsed, benchmark.socketBytes / benchmark.socketReads,
+                    benchmark.tunBytes / benchmark.tunWrites, (threads.getCurrentThreadCpuTime() - cpu) / 1e6 / megabytes);
+            benchmark.close();
+            server.join();
+        }
+    }
+}
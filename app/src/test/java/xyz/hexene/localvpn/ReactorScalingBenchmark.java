@@ -0,0 +1,124 @@
+package xyz.hexene.localvpn;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download throughput through 1 to N TCP reactors, wired the way LocalVPNService does it:
+ * one selector, TCPInput and TCPOutput per reactor, flows sharded by FlowTable.shard(), and
+ * one ring to the device. The device takes every segment off the ring and ACKs it back
+ * through the flow's reactor, no TUN device in between.
+ * Run with main([maxReactors [flows [seconds]]]).
+ */
+public class ReactorScalingBenchmark {
+    private static final int NETWORK_TO_DEVICE_CAPACITY = 1024;
+    private static final int DEVICE_TO_NETWORK_CAPACITY = 512;
+
+    private final int reactors;
+    private final Selector[] selectors;
+    private final List<RingBuffer<ByteBuffer>> deviceToNetworkQueues = new ArrayList<>();
+    private final RingBuffer<ByteBuffer> networkToDeviceQueue = new RingBuffer<>(NETWORK_TO_DEVICE_CAPACITY, true,
+            RingBuffer.Overflow.BLOCK, RingBuffer.Wait.PARK);
+    private final List<Thread> threads = new ArrayList<>();
+    private final LoopbackDownload download;
+
+    private ReactorScalingBenchmark(int reactors, int flows) throws IOException {
+        this.reactors = reactors;
+        selectors = new Selector[reactors];
+
+        LinkedBlockingQueue<byte[]> apiQueue = new LinkedBlockingQueue<>();
+        SelectorCommandQueue[] selectorCommands = new SelectorCommandQueue[reactors];
+        for (int i = 0; i < reactors; i++) {
+            selectors[i] = Selector.open();
+            selectorCommands[i] = new SelectorCommandQueue(selectors[i]);
+            RingBuffer<ByteBuffer> deviceToNetworkQueue = new RingBuffer<>(DEVICE_TO_NETWORK_CAPACITY, false,
+                    RingBuffer.Overflow.DROP, RingBuffer.Wait.PARK);
+            deviceToNetworkQueues.add(deviceToNetworkQueue);
+            threads.add(new Thread(new TCPInput(networkToDeviceQueue, apiQueue, selectorCommands[i]), "TCPInput-" + i));
+            threads.add(new Thread(new TCPOutput(deviceToNetworkQueue, networkToDeviceQueue, apiQueue,
+                    selectorCommands[i], null), "TCPOutput-" + i));
+        }
+
+        download = new LoopbackDownload(flows);
+        for (int i = 0; i < flows; i++) {
+            // Established already, so no VpnService is needed to connect
+            int devicePort = LoopbackDownload.FIRST_DEVICE_PORT + i;
+            int shard = FlowTable.shard(LoopbackDownload.key(devicePort), reactors);
+            TCB.putTCB(TcpFixture.establish(devicePort, download.channels.get(i), selectorCommands[shard]));
+        }
+        threads.add(new Thread(download, "servers"));
+    }
+
+    /**
+     * Plays the device for the given time.
+     *
+     * @return payload bytes received
+     */
+    private long device(long nanos) throws InterruptedException {
+        long start = download.bytes;
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            ByteBuffer buffer = networkToDeviceQueue.poll(TimeUnit.MILLISECONDS.toNanos(10));
+            if (buffer == null)
+                continue;
+            ByteBuffer ack = download.acknowledge(buffer);
+            if (ack == null)
+                continue;
+            int shard = FlowTable.shard(LoopbackDownload.key(ack.getShort(20) & 0xFFFF), reactors);
+            if (!deviceToNetworkQueues.get(shard).offer(ack))
+                ByteBufferPool.release(ack);
+        }
+        return download.bytes - start;
+    }
+
+    private void close() throws Exception {
+        for (Thread thread : threads)
+            thread.interrupt();
+        for (Thread thread : threads)
+            thread.join();
+        for (Selector selector : selectors)
+            selector.close();
+        download.close();
+        TCB.closeAll();
+        ByteBuffer buffer;
+        while ((buffer = networkToDeviceQueue.poll()) != null)
+            ByteBufferPool.release(buffer);
+        for (RingBuffer<ByteBuffer> queue : deviceToNetworkQueues) {
+            while ((buffer = queue.poll()) != null)
+                ByteBufferPool.release(buffer);
+        }
+    }
+
+    static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxReactors = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int flows = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " CPUs, " + flows + " flows");
+        for (int reactors = 1; reactors <= maxReactors; reactors++) {
+            ReactorScalingBenchmark benchmark = new ReactorScalingBenchmark(reactors, flows);
+            for (Thread thread : benchmark.threads)
+                thread.start();
+            benchmark.device(TimeUnit.SECONDS.toNanos(1));
+
+            long cpu = processCpuNanos();
+            long start = System.nanoTime();
+            long bytes = benchmark.device(TimeUnit.SECONDS.toNanos(seconds));
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            double megabytes = bytes / 1e6;
+            System.out.printf("%d reactors: %.1f MB/s, %.2f CPU ms/MB%n", reactors, megabytes / elapsed,
+                    (processCpuNanos() - cpu) / 1e6 / megabytes);
+            benchmark.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package xyz.hexene.localvpn;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+
+    /**
+     * A ring of capacity 8 whose head has wrapped round, holding first..first+count-1.
+     */
+    private static RingBuffer<Integer> wrapped(int first, int count) {
+        RingBuffer<Integer> ring = new RingBuffer<>(8, false, RingBuffer.Overflow.DROP, RingBuffer.Wait.SPIN);
+        for (int i = 0; i < 6; i++) {
+            ring.offer(-1);
+            ring.poll();
+        }
+        for (int i = 0; i < count; i++)
+            assertTrue(ring.offer(first + i));
+        return ring;
+    }
+
+    @Test
+    public void iteratesFromHeadToTail() {
+        RingBuffer<Integer> ring = wrapped(0, 5);
+        assertArrayEquals(new Object[]{0, 1, 2, 3, 4}, ring.toArray());
+        assertTrue(ring.contains(3));
+        assertFalse(ring.contains(5));
+    }
+
+    @Test
+    public void removeKeepsOrderAndFreesSpace() {
+        RingBuffer<Integer> ring = wrapped(0, 8);
+        assertFalse(ring.offer(8));
+        assertTrue(ring.remove((Object) 5));
+        assertFalse(ring.remove((Object) 5));
+        assertEquals(7, ring.size());
+        assertTrue(ring.offer(8));
+        assertArrayEquals(new Object[]{0, 1, 2, 3, 4, 6, 7, 8}, ring.toArray());
+        for (int i : new int[]{0, 1, 2, 3, 4, 6, 7, 8})
+            assertEquals((Integer) i, ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void iteratorRemovesAsItGoes() {
+        RingBuffer<Integer> ring = wrapped(0, 6);
+        for (Iterator<Integer> iterator = ring.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() % 2 == 0)
+                iterator.remove();
+        }
+        assertArrayEquals(new Object[]{1, 3, 5}, ring.toArray());
+        assertEquals((Integer) 1, ring.poll());
+    }
+
+    @Test
+    public void blockedOfferGivesUpOnInterrupt() {
+        RingBuffer<Integer> ring = new RingBuffer<>(2, false, RingBuffer.Overflow.BLOCK, RingBuffer.Wait.PARK);
+        assertTrue(ring.offer(1));
+        assertTrue(ring.offer(2));
+        Thread.currentThread().interrupt();
+        try {
+            // The caller still owns what it offered then
+            assertFalse(ring.offer(3));
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, ring.getBlocked());
+        assertArrayEquals(new Object[]{1, 2}, ring.toArray());
+    }
+}
@@ -0,0 +1,111 @@
+package xyz.hexene.localvpn;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector wakeups per MB downloaded through one TCPInput, counted the way IoStats counts
+ * "selector wakeups": a select() that found ready keys. The reactor loop is TCPInput.run()'s,
+ * driven from here so the wakeups can be counted whatever TCPInput logs; the device takes
+ * every segment off the ring and hands its ACK to TCPOutput.processPacket() on its own thread.
+ * Loopback delivers data faster than a real network, so reads fill up more per wakeup than
+ * on a device. It only uses what TCPInput had before reads were scattered into segments, so
+ * the two can be compared. Run with main([flows [seconds]]).
+ */
+public class SelectorWakeupBenchmark {
+    private static final int NETWORK_TO_DEVICE_CAPACITY = 1024;
+    private static final long SELECT_TIMEOUT_MILLIS = 50;
+
+    private final Selector selector = Selector.open();
+    private final SelectorCommandQueue selectorCommands = new SelectorCommandQueue(selector);
+    private final RingBuffer<ByteBuffer> networkToDeviceQueue = new RingBuffer<>(NETWORK_TO_DEVICE_CAPACITY, true,
+            RingBuffer.Overflow.BLOCK, RingBuffer.Wait.PARK);
+    private final LinkedBlockingQueue<byte[]> apiQueue = new LinkedBlockingQueue<>();
+    private final TCPInput tcpInput = new TCPInput(networkToDeviceQueue, apiQueue, selectorCommands);
+    private final TCPOutput tcpOutput = new TCPOutput(null, networkToDeviceQueue, apiQueue, selectorCommands, null);
+    private final LoopbackDownload download;
+    private final Thread reactor;
+    private final Thread servers;
+    // Only written by the reactor thread
+    private volatile long wakeups;
+
+    private SelectorWakeupBenchmark(int flows) throws Exception {
+        download = new LoopbackDownload(flows);
+        for (int i = 0; i < flows; i++) {
+            TCB tcb = TcpFixture.establish(LoopbackDownload.FIRST_DEVICE_PORT + i, download.channels.get(i),
+                    selectorCommands);
+            // TCPInput used to inspect every flow like a game API one
+            tcb.setFlowClass(TCB.FlowClass.GAME_API);
+            TCB.putTCB(tcb);
+        }
+        reactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.interrupted()) {
+                        selectorCommands.apply();
+                        selector.select(SELECT_TIMEOUT_MILLIS);
+                        if (!selector.selectedKeys().isEmpty())
+                            wakeups++;
+                        tcpInput.processSelected();
+                    }
+                } catch (Exception e) {
+                    // Closed at the end of the run
+                }
+            }
+        }, "TCPInput");
+        servers = new Thread(download, "servers");
+    }
+
+    /**
+     * Plays the device for the given time.
+     *
+     * @return payload bytes received
+     */
+    private long device(long nanos) throws InterruptedException {
+        long start = download.bytes;
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            ByteBuffer buffer = networkToDeviceQueue.poll(TimeUnit.MILLISECONDS.toNanos(10));
+            if (buffer == null)
+                continue;
+            ByteBuffer ack = download.acknowledge(buffer);
+            if (ack != null)
+                tcpOutput.processPacket(ack);
+        }
+        return download.bytes - start;
+    }
+
+    private void close() throws Exception {
+        reactor.interrupt();
+        servers.interrupt();
+        reactor.join();
+        servers.join();
+        selector.close();
+        download.close();
+        TCB.closeAll();
+        ByteBuffer buffer;
+        while ((buffer = networkToDeviceQueue.poll()) != null)
+            ByteBufferPool.release(buffer);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int flows = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        SelectorWakeupBenchmark benchmark = new SelectorWakeupBenchmark(flows);
+        benchmark.reactor.start();
+        benchmark.servers.start();
+        benchmark.device(TimeUnit.SECONDS.toNanos(1));
+
+        long wakeups = benchmark.wakeups;
+        long start = System.nanoTime();
+        long bytes = benchmark.device(TimeUnit.SECONDS.toNanos(seconds));
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        wakeups = benchmark.wakeups - wakeups;
+        System.out.printf("%d flows: %.1f MB/s, %.1f selector wakeups/MB, %d bytes/wakeup%n", flows,
+                bytes / 1e6 / elapsed, wakeups / (bytes / (double) (1 << 20)), bytes / Math.max(wakeups, 1));
+        benchmark.close();
+    }
+}
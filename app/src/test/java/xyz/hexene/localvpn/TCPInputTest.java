@@ -0,0 +1,57 @@
+package xyz.hexene.localvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TCPInputTest {
+    private TcpFixture fixture;
+    private TCB tcb;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new TcpFixture();
+        tcb = fixture.tcb;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fixture.clearToDevice();
+        fixture.close();
+    }
+
+    @Test
+    public void emptyReadKeepsDelayedAck() throws Exception {
+        long now = System.nanoTime();
+        tcb.unackedSegments = 1;
+        assertTrue(tcb.delayAck(now));
+        long deadline = tcb.ackDeadline;
+
+        fixture.tcpInput.sendSegments(tcb, 0, now);
+        assertEquals(1, tcb.unackedSegments);
+        assertEquals(deadline, tcb.ackDeadline);
+        assertTrue(fixture.toDevice.isEmpty());
+    }
+
+    @Test
+    public void dataCarriesDelayedAck() throws Exception {
+        long now = System.nanoTime();
+        tcb.unackedSegments = 1;
+        assertTrue(tcb.delayAck(now));
+
+        fixture.server.write(ByteBuffer.allocate(100));
+        for (int i = 0; i < 10 && fixture.toDevice.isEmpty(); i++) {
+            fixture.selectorCommands.apply();
+            fixture.selector.select(100);
+            fixture.tcpInput.processSelected();
+        }
+        assertEquals(1, fixture.toDevice.size());
+        assertEquals(0, tcb.unackedSegments);
+        assertEquals(0, tcb.ackDeadline);
+    }
+}
@@ -0,0 +1,187 @@
+package xyz.hexene.localvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TCPOutputTest {
+    private TcpFixture fixture;
+    private TCB tcb;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new TcpFixture();
+        tcb = fixture.tcb;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fixture.clearToDevice();
+        fixture.close();
+    }
+
+    /**
+     * Lets the server send, then close, and TCPInput turn that into segments and a FIN.
+     */
+    private void serverSendsAndCloses(int length) throws Exception {
+        fixture.server.write(ByteBuffer.allocate(length));
+        fixture.server.socket().shutdownOutput();
+        for (int i = 0; i < 10 && tcb.status != TCB.TCBStatus.LAST_ACK; i++) {
+            fixture.selectorCommands.apply();
+            fixture.selector.select(100);
+            fixture.tcpInput.processSelected();
+        }
+        assertEquals(TCB.TCBStatus.LAST_ACK, tcb.status);
+        fixture.clearToDevice();
+    }
+
+    @Test
+    public void lastAckKeepsFlowUntilFinIsAcknowledged() throws Exception {
+        serverSendsAndCloses(1000);
+        long deviceSeq = TcpFixture.DEVICE_SEQUENCE;
+        long finSeq = tcb.mySequenceNum;
+
+        // The data segment was lost: the device keeps acknowledging only what came before it
+        for (int i = 0; i < 3; i++)
+            fixture.processACK(TcpFixture.ack(deviceSeq, TcpFixture.OUR_SEQUENCE));
+        assertFalse(tcb.isCancelled());
+        assertFalse(tcb.retransmissionQueue.isEmpty());
+        assertEquals("fast retransmit", 1, fixture.toDevice.size());
+        assertEquals(TcpFixture.OUR_SEQUENCE, fixture.toDevice.peek().getInt(24) & 0xFFFFFFFFL);
+
+        fixture.processACK(TcpFixture.ack(deviceSeq, finSeq - 1));
+        assertFalse(tcb.isCancelled());
+        fixture.processACK(TcpFixture.ack(deviceSeq, finSeq));
+        assertTrue(tcb.isCancelled());
+    }
+
+    @Test
+    public void closedFlowDropsSegment() throws Exception {
+        TCB.closeTCB(tcb);
+        ByteBuffer segment = TcpFixture.segment(TcpFixture.DEVICE_SEQUENCE, TcpFixture.OUR_SEQUENCE, new byte[100]);
+        assertFalse("left for the caller to release", fixture.processACK(segment));
+        ByteBufferPool.release(segment);
+        assertEquals(TcpFixture.DEVICE_SEQUENCE, tcb.receiveNextNum);
+        assertTrue(tcb.reassemblyQueue.isEmpty());
+        assertTrue(fixture.toDevice.isEmpty());
+    }
+
+    /**
+     * What reached the server so far, without waiting for more.
+     */
+    private int serverReceived() throws Exception {
+        fixture.server.configureBlocking(false);
+        ByteBuffer received = ByteBuffer.allocate(4096);
+        int total = 0;
+        // Loopback delivers at once, a short wait only covers scheduling
+        for (int i = 0; i < 20; i++) {
+            int read = fixture.server.read(received);
+            total += Math.max(read, 0);
+            if (read <= 0)
+                Thread.sleep(5);
+        }
+        return total;
+    }
+
+    private void deviceSends(String payload) throws Exception {
+        ByteBuffer segment = TcpFixture.segment(TcpFixture.DEVICE_SEQUENCE, TcpFixture.OUR_SEQUENCE,
+                payload.getBytes(StandardCharsets.US_ASCII));
+        if (!fixture.processACK(segment))
+            ByteBufferPool.release(segment);
+    }
+
+    @Test
+    public void unknownFlowWritesAtOnce() throws Exception {
+        String handshake = "\u0016\u0003\u0001 not HTTP";
+        deviceSends(handshake);
+        assertEquals(TCB.FlowClass.OPAQUE, tcb.flowClass);
+        assertEquals(TCB.WritePolicy.LATENCY, tcb.writePolicy);
+        assertEquals(handshake.length(), serverReceived());
+    }
+
+    @Test
+    public void staticAssetIsGatheredUntilFlushed() throws Exception {
+        String request = "GET /kcs/resources/image.png HTTP/1.1\r\n";
+        deviceSends(request);
+        assertEquals(TCB.FlowClass.STATIC_ASSET, tcb.flowClass);
+        assertEquals(TCB.WritePolicy.THROUGHPUT, tcb.writePolicy);
+        assertEquals(0, serverReceived());
+        fixture.tcpOutput.flushGatheredWrites();
+        assertEquals(request.length(), serverReceived());
+    }
+
+    @Test
+    public void finPayloadReachesServer() throws Exception {
+        fixture.processPacket(TcpFixture.fin(TcpFixture.DEVICE_SEQUENCE, TcpFixture.OUR_SEQUENCE,
+                "bye".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(3, serverReceived());
+        assertEquals((byte) (Packet.TCPHeader.FIN | Packet.TCPHeader.ACK), fixture.lastFlags());
+        assertEquals("the payload and the FIN", TcpFixture.DEVICE_SEQUENCE + 4, fixture.lastAck());
+    }
+
+    @Test
+    public void finBehindGapWaitsForIt() throws Exception {
+        long finSeq = TcpFixture.DEVICE_SEQUENCE + 100;
+        fixture.processPacket(TcpFixture.fin(finSeq, TcpFixture.OUR_SEQUENCE, new byte[0]));
+        assertEquals(TCB.TCBStatus.ESTABLISHED, tcb.status);
+        assertEquals((byte) Packet.TCPHeader.ACK, fixture.lastFlags());
+        assertEquals("duplicate ACK for the hole", TcpFixture.DEVICE_SEQUENCE, fixture.lastAck());
+
+        fixture.processPacket(TcpFixture.segment(TcpFixture.DEVICE_SEQUENCE, TcpFixture.OUR_SEQUENCE, new byte[100]));
+        fixture.processPacket(TcpFixture.fin(finSeq, TcpFixture.OUR_SEQUENCE, new byte[0]));
+        assertEquals(TCB.TCBStatus.LAST_ACK, tcb.status);
+        assertEquals(finSeq + 1, fixture.lastAck());
+        assertEquals(100, serverReceived());
+    }
+
+    @Test
+    public void finWaitsForPendingWrites() throws Exception {
+        String request = "GET /kcs/resources/image.png HTTP/1.1\r\n";
+        deviceSends(request);
+        assertTrue(tcb.pendingWriteBytes > 0);
+        long finSeq = TcpFixture.DEVICE_SEQUENCE + request.length();
+        fixture.clearToDevice();
+
+        fixture.processPacket(TcpFixture.fin(finSeq, TcpFixture.OUR_SEQUENCE, new byte[0]));
+        assertEquals(TCB.TCBStatus.ESTABLISHED, tcb.status);
+        assertTrue("nothing to acknowledge yet", fixture.toDevice.isEmpty());
+        // The device resends it, still unacknowledged
+        fixture.processPacket(TcpFixture.fin(finSeq, TcpFixture.OUR_SEQUENCE, new byte[0]));
+        assertEquals((byte) Packet.TCPHeader.ACK, fixture.lastFlags());
+        assertEquals(TcpFixture.DEVICE_SEQUENCE, fixture.lastAck());
+        assertEquals(TcpFixture.OUR_SEQUENCE, tcb.mySequenceNum);
+
+        fixture.tcpOutput.flushGatheredWrites();
+        assertEquals(request.length(), serverReceived());
+        assertEquals(TCB.TCBStatus.LAST_ACK, tcb.status);
+        assertEquals((byte) (Packet.TCPHeader.FIN | Packet.TCPHeader.ACK), fixture.lastFlags());
+        assertEquals(finSeq + 1, fixture.lastAck());
+        assertEquals(TcpFixture.OUR_SEQUENCE + 1, tcb.mySequenceNum);
+
+        // Our FIN|ACK was lost, the answer to the resent FIN is the same segment
+        fixture.clearToDevice();
+        fixture.processPacket(TcpFixture.fin(finSeq, TcpFixture.OUR_SEQUENCE, new byte[0]));
+        assertEquals((byte) (Packet.TCPHeader.FIN | Packet.TCPHeader.ACK), fixture.lastFlags());
+        assertEquals(TcpFixture.OUR_SEQUENCE, fixture.toDevice.peekLast().getInt(24) & 0xFFFFFFFFL);
+        assertEquals(TcpFixture.OUR_SEQUENCE + 1, tcb.mySequenceNum);
+
+        fixture.processPacket(TcpFixture.ack(finSeq + 1, TcpFixture.OUR_SEQUENCE + 1));
+        assertTrue(tcb.isCancelled());
+    }
+
+    @Test
+    public void timeoutOnlyWhileAnAckIsHeldBack() throws Exception {
+        assertEquals(-1, fixture.tcpOutput.timeoutNanos(System.nanoTime()));
+        deviceSends("\u0016\u0003\u0001 not HTTP");
+        long timeout = fixture.tcpOutput.timeoutNanos(System.nanoTime());
+        assertTrue("the delayed ACK", timeout >= 0);
+        assertEquals("past the deadline it is due now", 0, fixture.tcpOutput.timeoutNanos(tcb.ackDeadline + 1));
+    }
+}
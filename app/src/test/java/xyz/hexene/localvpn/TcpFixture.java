@@ -0,0 +1,168 @@
+package xyz.hexene.localvpn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One established flow between a fake device and a loopback server: the TCB, a TCPOutput and
+ * a TCPInput sharing its selector, and what they send to the device collected in toDevice.
+ */
+class TcpFixture {
+    static final int DEVICE_ADDRESS = 0x0A000002;
+    static final int SERVER_ADDRESS = 0x7D06BD07;
+    static final int DEVICE_PORT = 40000;
+    static final int SERVER_PORT = 80;
+    // Initial sequence numbers, after the handshake
+    static final long DEVICE_SEQUENCE = 5000;
+    static final long OUR_SEQUENCE = 1000;
+
+    final SocketChannel server;
+    final SocketChannel channel;
+    final Selector selector;
+    final SelectorCommandQueue selectorCommands;
+    final TCB tcb;
+    final ArrayDeque<ByteBuffer> toDevice = new ArrayDeque<>();
+    final LinkedBlockingQueue<byte[]> apiQueue = new LinkedBlockingQueue<>();
+    final TCPOutput tcpOutput;
+    final TCPInput tcpInput;
+
+    TcpFixture() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        channel = SocketChannel.open(listener.socket().getLocalSocketAddress());
+        server = listener.accept();
+        listener.close();
+        channel.configureBlocking(false);
+
+        selector = Selector.open();
+        selectorCommands = new SelectorCommandQueue(selector);
+        tcb = establish(DEVICE_PORT, channel, selectorCommands);
+        // Looked up by processPacket
+        TCB.putTCB(tcb);
+
+        tcpOutput = new TCPOutput(null, toDevice, apiQueue, selectorCommands, null);
+        tcpInput = new TCPInput(toDevice, apiQueue, selectorCommands);
+    }
+
+    void close() throws IOException {
+        TCB.closeTCB(tcb);
+        server.close();
+        selector.close();
+    }
+
+    /**
+     * A flow from devicePort to the server, past the handshake, reading from channel.
+     */
+    static TCB establish(int devicePort, SocketChannel channel, SelectorCommandQueue selectorCommands)
+            throws IOException {
+        long key = FlowTable.key(SERVER_ADDRESS, SERVER_PORT, devicePort);
+        ByteBuffer syn = syn(devicePort);
+        TCB tcb = new TCB(key, "test:" + devicePort, OUR_SEQUENCE, DEVICE_SEQUENCE, DEVICE_SEQUENCE, OUR_SEQUENCE,
+                channel, new TCPHeaderTemplate(new Packet().wrap(syn)));
+        ByteBufferPool.release(syn);
+        tcb.status = TCB.TCBStatus.ESTABLISHED;
+        tcb.deviceWindow = 65535;
+        tcb.waitingForNetworkData = true;
+        tcb.selectorCommands = selectorCommands;
+        tcb.selectionKey = channel.register(selectorCommands.getSelector(), SelectionKey.OP_READ, tcb);
+        tcb.interestOps = SelectionKey.OP_READ;
+        return tcb;
+    }
+
+    static ByteBuffer syn() {
+        return syn(DEVICE_PORT);
+    }
+
+    static ByteBuffer syn(int devicePort) {
+        ByteBuffer buffer = packet(devicePort, DEVICE_SEQUENCE - 1, 0, Packet.TCPHeader.SYN, 4);
+        // MSS option
+        buffer.put(40, (byte) 2).put(41, (byte) 4).putShort(42, (short) 1460);
+        return buffer;
+    }
+
+    /**
+     * A segment from the device carrying payload.length bytes.
+     */
+    static ByteBuffer segment(long sequenceNum, long ackNum, byte[] payload) {
+        return segment(sequenceNum, ackNum, Packet.TCPHeader.ACK, payload);
+    }
+
+    /**
+     * The device's FIN, after payload.length bytes.
+     */
+    static ByteBuffer fin(long sequenceNum, long ackNum, byte[] payload) {
+        return segment(sequenceNum, ackNum, Packet.TCPHeader.FIN | Packet.TCPHeader.ACK, payload);
+    }
+
+    private static ByteBuffer segment(long sequenceNum, long ackNum, int flags, byte[] payload) {
+        ByteBuffer buffer = packet(sequenceNum, ackNum, flags, payload.length);
+        for (int i = 0; i < payload.length; i++)
+            buffer.put(Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE + i, payload[i]);
+        return buffer;
+    }
+
+    static ByteBuffer ack(long sequenceNum, long ackNum) {
+        return packet(sequenceNum, ackNum, Packet.TCPHeader.ACK, 0);
+    }
+
+    private static ByteBuffer packet(long sequenceNum, long ackNum, int flags, int length) {
+        return packet(DEVICE_PORT, sequenceNum, ackNum, flags, length);
+    }
+
+    /**
+     * A packet from the device to the server, payload left zeroed.
+     */
+    static ByteBuffer packet(int devicePort, long sequenceNum, long ackNum, int flags, int length) {
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        int headerLength = flags == Packet.TCPHeader.SYN ? Packet.TCP_HEADER_SIZE + 4 : Packet.TCP_HEADER_SIZE;
+        int total = Packet.IP4_HEADER_SIZE + headerLength + (flags == Packet.TCPHeader.SYN ? 0 : length);
+        buffer.put(0, (byte) 0x45).putShort(2, (short) total).put(8, (byte) 64).put(9, (byte) 6)
+                .putInt(12, DEVICE_ADDRESS).putInt(16, SERVER_ADDRESS)
+                .putShort(20, (short) devicePort).putShort(22, (short) SERVER_PORT)
+                .putInt(24, (int) sequenceNum).putInt(28, (int) ackNum)
+                .put(32, (byte) (headerLength / 4 << 4)).put(33, (byte) flags).putShort(34, (short) 65535);
+        buffer.limit(total);
+        return buffer;
+    }
+
+    /**
+     * Runs a packet through TCPOutput.processACK the way processPacket would.
+     *
+     * @return whether the payload buffer was kept
+     */
+    boolean processACK(ByteBuffer packetBuffer) throws IOException {
+        Packet packet = new Packet().wrap(packetBuffer);
+        return tcpOutput.processACK(tcb, packet.tcpHeader, packet.backingBuffer);
+    }
+
+    /**
+     * Runs a packet through TCPOutput.processPacket, which takes it over.
+     */
+    void processPacket(ByteBuffer packetBuffer) {
+        tcpOutput.processPacket(packetBuffer);
+    }
+
+    /**
+     * Acknowledgement number of the last segment sent to the device.
+     */
+    long lastAck() {
+        return toDevice.peekLast().getInt(28) & 0xFFFFFFFFL;
+    }
+
+    byte lastFlags() {
+        return toDevice.peekLast().get(33);
+    }
+
+    void clearToDevice() {
+        ByteBuffer buffer;
+        while ((buffer = toDevice.poll()) != null)
+            ByteBufferPool.release(buffer);
+    }
+}
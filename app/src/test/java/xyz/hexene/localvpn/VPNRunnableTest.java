@@ -0,0 +1,100 @@
+package xyz.hexene.localvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * VPNRunnable reading from a pipe, which blocks in read() like the TUN descriptor does.
+ */
+public class VPNRunnableTest {
+    private Pipe pipe;
+    private RingBuffer<ByteBuffer> tcpQueue;
+    private Thread thread;
+
+    @Before
+    public void setUp() throws Exception {
+        ByteBufferPool.clear();
+        pipe = Pipe.open();
+        tcpQueue = new RingBuffer<>(8, false, RingBuffer.Overflow.DROP, RingBuffer.Wait.PARK);
+        RingBuffer<ByteBuffer> udpQueue = new RingBuffer<>(8, false, RingBuffer.Overflow.DROP, RingBuffer.Wait.PARK);
+        thread = new Thread(new LocalVPNService.VPNRunnable(pipe.source(), IdleStrategy.backoff(10), udpQueue,
+                Collections.singletonList(tcpQueue)), "VPNRunnable");
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        thread.interrupt();
+        thread.join();
+        LocalVPNService.closeResources(pipe.sink(), pipe.source());
+        ByteBuffer buffer;
+        while ((buffer = tcpQueue.poll()) != null)
+            ByteBufferPool.release(buffer);
+    }
+
+    /**
+     * Pool buffers not back in the pool, as stats() reports them.
+     */
+    private static long inUse() {
+        Matcher matcher = Pattern.compile("inUse = (\\d+)").matcher(ByteBufferPool.stats());
+        assertTrue(matcher.find());
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private void stopped() throws Exception {
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(thread.isAlive());
+        assertFalse("the source is closed on the way out", pipe.source().isOpen());
+    }
+
+    @Test
+    public void packetReachesRingUntilEndOfStream() throws Exception {
+        ByteBuffer syn = TcpFixture.syn();
+        ByteBuffer sent = ByteBuffer.allocate(syn.remaining()).put(syn);
+        ByteBufferPool.release(syn);
+        sent.flip();
+        pipe.sink().write(sent);
+        sent.flip();
+
+        ByteBuffer received = tcpQueue.poll(TimeUnit.SECONDS.toNanos(5));
+        assertNotNull(received);
+        // Parsed on the way, which leaves it at the payload
+        received.position(0);
+        assertEquals(sent, received);
+
+        pipe.sink().close();
+        stopped();
+        assertEquals("only the packet in the ring", 1, inUse());
+        ByteBufferPool.release(received);
+    }
+
+    @Test
+    public void interruptEndsBlockedRead() throws Exception {
+        // Blocked in read() on an empty pipe
+        Thread.sleep(50);
+        thread.interrupt();
+        stopped();
+        assertEquals(0, inUse());
+    }
+
+    @Test
+    public void closedSourceEndsBlockedRead() throws Exception {
+        Thread.sleep(50);
+        pipe.source().close();
+        stopped();
+        assertEquals(0, inUse());
+    }
+}